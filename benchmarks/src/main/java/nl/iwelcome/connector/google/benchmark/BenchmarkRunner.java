@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks of this module with the GC profiler attached, so the
+ * results include the allocation rate per operation. An optional argument
+ * selects the benchmarks by regular expression. On Java 9 and later the
+ * forked JVMs open java.lang to the JAXB 2.2 runtime, which defines classes
+ * reflectively.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+		ChainedOptionsBuilder options = new OptionsBuilder()
+		        .include(include)
+		        .addProfiler(GCProfiler.class)
+		        .forks(1)
+		        .warmupIterations(5)
+		        .measurementIterations(5);
+		if (!System.getProperty("java.specification.version").startsWith("1.")) {
+			options.jvmArgsAppend("--add-opens", "java.base/java.lang=ALL-UNNAMED");
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.stream.StreamSource;
+
+import nl.iwelcome.connector.google.GoogleAtomReader;
+import nl.iwelcome.connector.google.GoogleXmlContext;
+import nl.iwelcome.connector.google.benchmark.Fixtures.PayloadSize;
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+/**
+ * Unmarshals a customer entry the way GoogleAppsService.getCustomerId used to:
+ * a Jaxb2Marshaller reading a Reader around a ByteArrayInputStream, compared
+ * with the pooled unmarshallers of GoogleXmlContext and with the StAX based
+ * GoogleAtomReader now used by the template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CustomerIdUnmarshalBenchmark {
+
+	@Param
+	private PayloadSize size;
+
+	private Jaxb2Marshaller marshaller;
+	private GoogleAtomReader reader;
+	private byte[] entry;
+
+	@Setup
+	public void setUp() throws Exception {
+		marshaller = new Jaxb2Marshaller();
+		marshaller.setClassesToBeBound(GoogleAtom.class, GoogleAtom.class);
+		marshaller.afterPropertiesSet();
+		reader = new GoogleAtomReader();
+		entry = Fixtures.customerEntry(size);
+	}
+
+	@Benchmark
+	public Object unmarshal() {
+		return marshaller.unmarshal(new StreamSource(new InputStreamReader(new ByteArrayInputStream(entry))));
+	}
+
+	@Benchmark
+	public Object pooledUnmarshal() throws JAXBException {
+		return GoogleXmlContext.unmarshal(new StreamSource(new ByteArrayInputStream(entry)));
+	}
+
+	@Benchmark
+	public GoogleAtom stax() throws IOException {
+		return reader.read(new ByteArrayInputStream(entry), null);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * Builds the payloads the benchmarks work on, in a small variant resembling a
+ * typical message and a large variant stressing the same code path.
+ */
+public final class Fixtures {
+
+	public enum PayloadSize {
+		SMALL(3), LARGE(500);
+
+		private final int items;
+
+		private PayloadSize(int items) {
+			this.items = items;
+		}
+
+		public int getItems() {
+			return items;
+		}
+	}
+
+	private Fixtures() {
+	}
+
+	/**
+	 * A customer entry as returned by the customer id feed, with the given
+	 * number of properties.
+	 */
+	public static byte[] customerEntry(PayloadSize size) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("<?xml version='1.0' encoding='UTF-8'?>");
+		builder.append("<atom:entry xmlns:atom='").append(GoogleConstants.ATOM_NAMESPACE)
+		        .append("' xmlns:apps='").append(GoogleConstants.GOOGLE_NAMESPACE).append("'>");
+		builder.append("<atom:id>https://apps-apis.google.com/a/feeds/customer/2.0/C03az79cb</atom:id>");
+		builder.append("<atom:updated>2010-11-15T09:13:32.742Z</atom:updated>");
+		builder.append("<apps:property name='customerId' value='C03az79cb'/>");
+		for (int i = 1; i < size.getItems(); i++) {
+			builder.append("<apps:property name='property").append(i).append("' value='value of property ")
+			        .append(i).append("'/>");
+		}
+		builder.append("</atom:entry>");
+		return bytes(builder.toString());
+	}
+
+	/**
+	 * A usersToMove message moving the given number of users.
+	 */
+	public static GoogleAtom moveMessage(PayloadSize size) {
+		StringBuilder users = new StringBuilder();
+		for (int i = 0; i < size.getItems(); i++) {
+			if (i > 0) {
+				users.append(", ");
+			}
+			users.append("user").append(i).append("@example.com");
+		}
+		List<GoogleProperty> properties = new ArrayList<GoogleProperty>();
+		properties.add(new GoogleProperty(GoogleConstants.CUSTOMER_ID_MESSAGE_FIELD, "C03az79cb"));
+		properties.add(new GoogleProperty(GoogleConstants.NAME_MESSAGE_FIELD, "sales/emea"));
+		properties.add(new GoogleProperty(GoogleConstants.USERS_TO_MOVE_MESSAGE_FIELD, users.toString()));
+		GoogleAtom message = new GoogleAtom();
+		message.setProperties(properties.toArray(new GoogleProperty[properties.size()]));
+		return message;
+	}
+
+	/**
+	 * A ClientLogin response, the large variant carrying many extra lines.
+	 */
+	public static byte[] clientLoginResponse(PayloadSize size) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SID=DQAAAGgA...7Zg8CTN\n");
+		builder.append("LSID=DQAAAGsA...lk8BBbG\n");
+		builder.append("Auth=DQAAAGgA...dk3fA5N\n");
+		for (int i = 3; i < size.getItems(); i++) {
+			builder.append("Extra").append(i).append("=value").append(i).append('\n');
+		}
+		return bytes(builder.toString());
+	}
+
+	private static byte[] bytes(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
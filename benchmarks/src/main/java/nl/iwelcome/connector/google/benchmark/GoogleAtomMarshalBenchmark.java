@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamResult;
+
+import nl.iwelcome.connector.google.GoogleAtomWriter;
+import nl.iwelcome.connector.google.benchmark.Fixtures.PayloadSize;
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+/**
+ * Marshals the usersToMove message sent in the body of an org-unit PUT, with
+ * JAXB and with the streaming GoogleAtomWriter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GoogleAtomMarshalBenchmark {
+
+	@Param
+	private PayloadSize size;
+
+	private Jaxb2Marshaller marshaller;
+	private GoogleAtomWriter writer;
+	private GoogleAtom message;
+
+	@Setup
+	public void setUp() throws Exception {
+		marshaller = new Jaxb2Marshaller();
+		marshaller.setClassesToBeBound(GoogleAtom.class, GoogleAtom.class);
+		marshaller.afterPropertiesSet();
+		writer = new GoogleAtomWriter();
+		message = Fixtures.moveMessage(size);
+	}
+
+	@Benchmark
+	public byte[] marshal() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.marshal(message, new StreamResult(out));
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] streaming() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(message, out, "UTF-8");
+		return out.toByteArray();
+	}
+}
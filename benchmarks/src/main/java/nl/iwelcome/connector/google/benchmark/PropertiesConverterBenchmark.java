@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import nl.iwelcome.connector.google.PropertiesHttpMessageConverter;
+import nl.iwelcome.connector.google.benchmark.Fixtures.PayloadSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.MediaType;
+
+/**
+ * Reads a ClientLogin response through PropertiesHttpMessageConverter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PropertiesConverterBenchmark {
+
+	@Param
+	private PayloadSize size;
+
+	private PropertiesHttpMessageConverter converter;
+	private byte[] response;
+	private HttpHeaders headers;
+
+	@Setup
+	public void setUp() {
+		converter = new PropertiesHttpMessageConverter();
+		response = Fixtures.clientLoginResponse(size);
+		headers = new HttpHeaders();
+		headers.setContentType(MediaType.TEXT_PLAIN);
+	}
+
+	@Benchmark
+	public Properties read() throws Exception {
+		return converter.read(Properties.class, new HttpInputMessage() {
+			@Override
+			public HttpHeaders getHeaders() {
+				return headers;
+			}
+
+			@Override
+			public InputStream getBody() {
+				return new ByteArrayInputStream(response);
+			}
+		});
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.iwelcome.connector.google.PreparedRequest;
+import nl.iwelcome.connector.google.RestInvoker;
+import nl.iwelcome.connector.google.benchmark.Fixtures.PayloadSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Compares preparing a getUser request through the fluent RestInvoker on
+ * every call with executing a request prepared once. The responses come from
+ * memory, so the difference is the cost of preparation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RestInvokerBenchmark {
+
+	private static final String BASE_URL = "https://apps-apis.google.com/a/feeds/example.com/user/2.0/";
+
+	@Param
+	private PayloadSize size;
+
+	private RestTemplate operations;
+	private PreparedRequest<byte[]> getUser;
+
+	@Setup
+	public void setUp() {
+		operations = new RestTemplate(new StubClientHttpRequestFactory(Fixtures.customerEntry(size),
+		        MediaType.APPLICATION_ATOM_XML));
+		getUser = RestInvoker.prepareGetTo(BASE_URL + "{name}").expecting(byte[].class).prepare();
+	}
+
+	@Benchmark
+	public byte[] fluentInvoker() {
+		return RestInvoker.prepareGetTo(BASE_URL + "liz")
+		        .using(operations)
+		        .expecting(byte[].class)
+		        .withParam("T", "token")
+		        .execute();
+	}
+
+	@Benchmark
+	public byte[] preparedRequest() {
+		return getUser.execute(operations, "liz");
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.iwelcome.connector.google.GoogleAppsService;
+import nl.iwelcome.connector.google.GoogleAppsTemplate;
+import nl.iwelcome.connector.google.GoogleXmlContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Creates a service with its template, as the connector framework does for
+ * every connector instance. No remote call is made.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceCreationBenchmark {
+
+	private static final String URL = "https://apps-apis.google.com/a/feeds/";
+
+	@Setup
+	public void setUp() {
+		GoogleXmlContext.warmUp();
+	}
+
+	@Benchmark
+	public void createService(Blackhole blackhole) {
+		GoogleAppsTemplate template = new GoogleAppsTemplate("admin@example.com", "secret", URL, URL, URL, URL);
+		blackhole.consume(new GoogleAppsService(template));
+		template.destroy();
+	}
+}
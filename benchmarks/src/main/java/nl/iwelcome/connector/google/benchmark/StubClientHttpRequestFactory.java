@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Answers every request with the same in-memory response, so a benchmark
+ * measures the client side of a call without any network.
+ */
+public class StubClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+	private final byte[] body;
+	private final MediaType contentType;
+
+	public StubClientHttpRequestFactory(byte[] body, MediaType contentType) {
+		this.body = body;
+		this.contentType = contentType;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(final URI uri, final HttpMethod httpMethod) throws IOException {
+		return new ClientHttpRequest() {
+
+			private final HttpHeaders headers = new HttpHeaders();
+			private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+
+			@Override
+			public HttpMethod getMethod() {
+				return httpMethod;
+			}
+
+			@Override
+			public URI getURI() {
+				return uri;
+			}
+
+			@Override
+			public HttpHeaders getHeaders() {
+				return headers;
+			}
+
+			@Override
+			public OutputStream getBody() {
+				return requestBody;
+			}
+
+			@Override
+			public ClientHttpResponse execute() {
+				return new StubResponse();
+			}
+		};
+	}
+
+	private class StubResponse implements ClientHttpResponse {
+
+		private final HttpHeaders headers = new HttpHeaders();
+
+		private StubResponse() {
+			headers.setContentType(contentType);
+			headers.setContentLength(body.length);
+		}
+
+		@Override
+		public HttpStatus getStatusCode() {
+			return HttpStatus.OK;
+		}
+
+		@Override
+		public String getStatusText() {
+			return HttpStatus.OK.name();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+
+		@Override
+		public InputStream getBody() {
+			return new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
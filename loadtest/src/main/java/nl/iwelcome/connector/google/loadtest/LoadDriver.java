@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.iwelcome.connector.google.GoogleAppsService;
+import nl.iwelcome.connector.google.GoogleAppsTemplate;
+import nl.iwelcome.connector.google.GoogleAtomFeedIterator;
+import nl.iwelcome.connector.google.GoogleAtomHandler;
+import nl.iwelcome.connector.google.LatencyHistogram;
+import nl.iwelcome.connector.google.OperationMetrics;
+import nl.iwelcome.connector.google.ParallelUserExporter;
+import nl.iwelcome.connector.google.PooledClientHttpRequestFactory;
+import nl.iwelcome.connector.google.UserCache;
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+/**
+ * Runs a mix of {@link GoogleAppsService} and {@link GoogleAppsTemplate}
+ * operations from a number of threads against a {@link StubGoogleAppsServer}
+ * and reports the throughput and the latency percentiles per operation.
+ * Options are given as <code>--name=value</code>:
+ * 
+ * <pre>
+ * --threads=16              concurrent callers
+ * --duration=30             measured seconds, after --warmup=5 seconds
+ * --mix=getUser=70,move=10,scan=5,customer=15
+ *                           export reads all users with a ParallelUserExporter
+ * --exportParallelism=4     ranges read at the same time by export
+ * --users=2000 --pageSize=100
+ * --latency=20 --jitter=10  stub response time in milliseconds
+ * --errorRate=0.01          fraction of the stub responses failed with a 500
+ * --maxRate=0               stub quota in requests per second, 0 for none
+ * --connections=50          size of the HTTP connection pool
+ * --userCache=0             users cached by the template, 0 for none
+ * --conditionalCache=0      responses revalidated with ETags, 0 for none
+ * </pre>
+ */
+public class LoadDriver {
+
+	enum Operation {
+		GET_USER("getUser"), MOVE("move"), SCAN("scan"), EXPORT("export"), CUSTOMER("customer");
+
+		private final String key;
+
+		private Operation(String key) {
+			this.key = key;
+		}
+
+		static Operation forKey(String key) {
+			for (Operation operation : values()) {
+				if (operation.key.equals(key)) {
+					return operation;
+				}
+			}
+			throw new IllegalArgumentException("Unknown operation " + key);
+		}
+	}
+
+	private final Map<String, String> options;
+	private final Operation[] mix;
+	private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(
+	        Operation.class);
+	private final Map<Operation, AtomicLong> failures = new EnumMap<Operation, AtomicLong>(Operation.class);
+	private final int users;
+
+	private GoogleAppsTemplate template;
+	private GoogleAppsService service;
+	private ParallelUserExporter exporter;
+	private volatile boolean measuring;
+
+	public LoadDriver(Map<String, String> options) {
+		this.options = options;
+		this.mix = parseMix(option("mix", "getUser=70,move=10,scan=5,customer=15"));
+		this.users = Integer.parseInt(option("users", "2000"));
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+			failures.put(operation, new AtomicLong());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				throw new IllegalArgumentException("Expected --name=value, got " + arg);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		new LoadDriver(options).run();
+	}
+
+	public void run() throws Exception {
+		int threads = Integer.parseInt(option("threads", "16"));
+		StubGoogleAppsServer server = new StubGoogleAppsServer(users, Math.max(threads * 2, 8));
+		server.setPageSize(Integer.parseInt(option("pageSize", "100")));
+		server.setLatency(Long.parseLong(option("latency", "20")), Long.parseLong(option("jitter", "10")));
+		server.setErrorRate(Double.parseDouble(option("errorRate", "0")));
+		server.setMaxRequestsPerSecond(Double.parseDouble(option("maxRate", "0")));
+		server.start();
+
+		PooledClientHttpRequestFactory requestFactory = new PooledClientHttpRequestFactory();
+		int connections = Integer.parseInt(option("connections", "50"));
+		requestFactory.setMaxTotalConnections(connections);
+		requestFactory.setMaxConnectionsPerRoute(connections);
+		template = new GoogleAppsTemplate(StubGoogleAppsServer.EMAIL, StubGoogleAppsServer.PASSWORD,
+		        server.getLoginUrl(), server.getBaseUrl(), server.getCustomerIdUrl(), server.getMoveToGroupUrl(),
+		        requestFactory, false);
+		int userCache = Integer.parseInt(option("userCache", "0"));
+		if (userCache > 0) {
+			template.setUserCache(new UserCache(userCache, UserCache.DEFAULT_TIME_TO_LIVE));
+		}
+		int conditionalCache = Integer.parseInt(option("conditionalCache", "0"));
+		if (conditionalCache > 0) {
+			template.setConditionalGetCache(template.createConditionalGetCache(conditionalCache));
+		}
+		service = new GoogleAppsService(template);
+		exporter = new ParallelUserExporter(template, Integer.parseInt(option("exportParallelism", "4")));
+		try {
+			long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+			long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+			long elapsed = drive(threads, warmup, duration);
+			report(threads, elapsed, server);
+		} finally {
+			exporter.shutdown();
+			template.destroy();
+			requestFactory.destroy();
+			server.stop();
+		}
+	}
+
+	private long drive(int threads, long warmup, long duration) throws InterruptedException {
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmup;
+		final long end = measureFrom + duration;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < end) {
+							execute(mix[ThreadLocalRandom.current().nextInt(mix.length)]);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-driver-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+		long now;
+		while ((now = System.nanoTime()) < measureFrom) {
+			TimeUnit.NANOSECONDS.sleep(measureFrom - now);
+		}
+		measuring = true;
+		done.await();
+		return System.nanoTime() - measureFrom;
+	}
+
+	private void execute(Operation operation) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			switch (operation) {
+			case GET_USER:
+				template.getUser(null, randomUser(random));
+				break;
+			case MOVE:
+				service.moveUserToOrgUnit(randomUser(random), randomOrgUnit(random));
+				break;
+			case SCAN:
+				GoogleAtomFeedIterator iterator = template.iterateAllUser(null);
+				while (iterator.hasNext()) {
+					iterator.next();
+				}
+				break;
+			case EXPORT:
+				exporter.export(new GoogleAtomHandler() {
+					@Override
+					public boolean handle(GoogleAtom entry) {
+						return true;
+					}
+				});
+				break;
+			case CUSTOMER:
+				template.getCustomerId(null);
+				break;
+			}
+		} catch (RuntimeException e) {
+			failed = true;
+		}
+		if (measuring) {
+			latencies.get(operation).record(System.nanoTime() - start);
+			if (failed) {
+				failures.get(operation).incrementAndGet();
+			}
+		}
+	}
+
+	private String randomUser(ThreadLocalRandom random) {
+		return "user" + (random.nextInt(users) + 1) + "@" + StubGoogleAppsServer.DOMAIN;
+	}
+
+	private static String randomOrgUnit(ThreadLocalRandom random) {
+		return StubGoogleAppsServer.ORG_UNITS[random.nextInt(StubGoogleAppsServer.ORG_UNITS.length)];
+	}
+
+	private void report(int threads, long elapsed, StubGoogleAppsServer server) {
+		double seconds = elapsed / 1e9;
+		long total = 0;
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format(Locale.ROOT, "%-10s %10s %10s %8s %9s %9s %9s %9s%n", "operation", "calls",
+		        "ops/s", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Operation operation : Operation.values()) {
+			LatencyHistogram histogram = latencies.get(operation);
+			if (histogram.getCount() == 0) {
+				continue;
+			}
+			total += histogram.getCount();
+			builder.append(String.format(Locale.ROOT, "%-10s %10d %10.1f %8d %9.2f %9.2f %9.2f %9.2f%n",
+			        operation.key, histogram.getCount(), histogram.getCount() / seconds,
+			        failures.get(operation).get(), histogram.getPercentileMillis(0.5),
+			        histogram.getPercentileMillis(0.99), histogram.getPercentileMillis(0.999),
+			        histogram.getMaxMillis()));
+		}
+		System.out.printf(Locale.ROOT, "%d threads, %.1f s, %d calls, %.1f ops/s%n%n", threads, seconds, total,
+		        total / seconds);
+		System.out.print(builder);
+		System.out.printf(Locale.ROOT, "%nstub: %d requests, %d injected errors, %d throttled, %d not modified%n",
+		        server.getRequestCount(), server.getInjectedErrorCount(), server.getThrottledCount(),
+		        server.getNotModifiedCount());
+		System.out.printf(Locale.ROOT, "template: %d coalesced calls%n%n", template.getCoalescedCount());
+		List<String> lines = new ArrayList<String>();
+		for (OperationMetrics metrics : template.getMetrics().getAll()) {
+			if (metrics.getCallCount() > 0) {
+				lines.add(metrics.toString());
+			}
+		}
+		Collections.sort(lines);
+		for (String line : lines) {
+			System.out.println(line);
+		}
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Expands "getUser=70,move=10" into a table of 80 operations to pick from
+	 * at random.
+	 */
+	private static Operation[] parseMix(String mix) {
+		List<Operation> table = new ArrayList<Operation>();
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			Operation operation = Operation.forKey(pair[0]);
+			int weight = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+			for (int i = 0; i < weight; i++) {
+				table.add(operation);
+			}
+		}
+		if (table.isEmpty()) {
+			throw new IllegalArgumentException("Empty mix " + mix);
+		}
+		return table.toArray(new Operation[table.size()]);
+	}
+}
@@ -0,0 +1,478 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import nl.iwelcome.connector.google.NamedThreadFactory;
+import nl.iwelcome.connector.google.TokenBucket;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process imitation of the Google Apps endpoints used by the template:
+ * ClientLogin, the user feed sorted and paged by user name, single users, the
+ * customer id, the organization unit feed and the organization unit PUT
+ * moving users. Responses can be delayed, failed with a 500 and throttled
+ * with a 503, and are gzipped and revalidated with ETags like Google does.
+ * Instances are thread-safe.
+ */
+public class StubGoogleAppsServer {
+
+	public static final String DOMAIN = "example.com";
+	public static final String CUSTOMER_ID = "C03az79cb";
+	public static final String EMAIL = "admin@" + DOMAIN;
+	public static final String PASSWORD = "secret";
+	public static final String[] ORG_UNITS = { "Sales", "Sales/EMEA", "Engineering", "Engineering/Platform",
+	        "Support", "Finance" };
+
+	private static final String LOGIN_PATH = "/accounts/ClientLogin";
+	private static final String USER_PATH = "/a/feeds/user/2.0/" + DOMAIN + "/";
+	private static final String CUSTOMER_PATH = "/a/feeds/customer/2.0/customerId";
+	private static final String ORGUNIT_PATH = "/a/feeds/orgunit/2.0/";
+
+	private static final String ATOM = "application/atom+xml; charset=UTF-8";
+	private static final Pattern USERS_TO_MOVE = Pattern.compile("name=['\"]"
+	        + GoogleConstants.USERS_TO_MOVE_MESSAGE_FIELD + "['\"]\\s+value=['\"]([^'\"]*)['\"]");
+
+	static {
+		// the headers and the body are written separately, without this
+		// Nagle's algorithm adds a delayed ACK to every response
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String token = Long.toHexString(new Random().nextLong());
+	// by user name, the part of the email address before the domain
+	private final NavigableMap<String, StubUser> users = new ConcurrentSkipListMap<String, StubUser>();
+	private final Set<String> orgUnits = new CopyOnWriteArraySet<String>(Arrays.asList(ORG_UNITS));
+
+	private volatile int pageSize = 100;
+	private volatile long latencyMillis;
+	private volatile long latencyJitterMillis;
+	private volatile double errorRate;
+	private volatile TokenBucket quota;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+
+	/**
+	 * Creates a server on a free port of the loopback interface, serving the
+	 * given number of users named user1@example.com and so on.
+	 */
+	public StubGoogleAppsServer(int userCount, int threads) throws IOException {
+		for (int i = 1; i <= userCount; i++) {
+			String email = "user" + i + "@" + DOMAIN;
+			users.put("user" + i, new StubUser(email, "First" + i, "Last" + i));
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("stub-google-apps"));
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					dispatch(exchange);
+				} catch (RuntimeException e) {
+					send(exchange, 500, "text/plain", bytes("Error=" + e));
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getLoginUrl() {
+		return getUrl(LOGIN_PATH);
+	}
+
+	public String getBaseUrl() {
+		return getUrl(USER_PATH);
+	}
+
+	public String getCustomerIdUrl() {
+		return getUrl(CUSTOMER_PATH);
+	}
+
+	public String getMoveToGroupUrl() {
+		return getUrl(ORGUNIT_PATH);
+	}
+
+	/**
+	 * Sets the number of users on a page of the user feed.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Delays every response by the latency plus a random part of the jitter.
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Sets the fraction of the requests failed with a 500.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Answers requests above the given rate with a 503 quota error, 0 for no
+	 * limit.
+	 */
+	public void setMaxRequestsPerSecond(double rate) {
+		quota = rate <= 0 ? null : new TokenBucket(rate, Math.max(1, (int) rate));
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getInjectedErrorCount() {
+		return injectedErrors.get();
+	}
+
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	public long getNotModifiedCount() {
+		return notModified.get();
+	}
+
+	/**
+	 * Adds an organization unit users can be moved to.
+	 */
+	public void addOrgUnit(String path) {
+		orgUnits.add(path);
+	}
+
+	/**
+	 * Returns the organization unit a user was last moved to, or
+	 * <code>null</code>.
+	 */
+	public String getOrgUnit(String email) {
+		StubUser user = users.get(username(email));
+		return user == null ? null : user.orgUnitPath;
+	}
+
+	private String getUrl(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		delay();
+		TokenBucket bucket = quota;
+		if (bucket != null && !bucket.tryAcquire()) {
+			throttled.incrementAndGet();
+			send(exchange, 503, "text/plain", bytes("Quota exceeded, limit exceeded for this domain"));
+			return;
+		}
+		if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+			injectedErrors.incrementAndGet();
+			send(exchange, 500, "text/plain", bytes("Internal error"));
+			return;
+		}
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getRawPath();
+		if (path.equals(LOGIN_PATH) && method.equals("POST")) {
+			login(exchange);
+			return;
+		}
+		if (!("GoogleLogin auth=" + token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+			send(exchange, 401, "text/plain", bytes("Token invalid"));
+			return;
+		}
+		if (path.equals(USER_PATH) && method.equals("GET")) {
+			feed(exchange);
+		} else if (path.startsWith(USER_PATH) && method.equals("GET")) {
+			user(exchange, decode(path.substring(USER_PATH.length())));
+		} else if (path.equals(CUSTOMER_PATH) && method.equals("GET")) {
+			sendEntry(exchange, customerEntry(), "customer-1");
+		} else if (path.equals(ORGUNIT_PATH + CUSTOMER_ID) && method.equals("GET")) {
+			orgUnitFeed(exchange);
+		} else if (path.startsWith(ORGUNIT_PATH) && method.equals("PUT")) {
+			move(exchange, decode(path.substring(ORGUNIT_PATH.length())));
+		} else {
+			send(exchange, 404, "text/plain", bytes("Not found: " + method + " " + path));
+		}
+	}
+
+	private void delay() {
+		long millis = latencyMillis;
+		if (latencyJitterMillis > 0) {
+			millis += ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+		}
+		if (millis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void login(HttpExchange exchange) throws IOException {
+		String form = new String(read(exchange.getRequestBody()), "UTF-8");
+		if (!form.contains("Email=" + URLEncoder.encode(EMAIL, "UTF-8"))
+		        || !form.contains("Passwd=" + URLEncoder.encode(PASSWORD, "UTF-8"))) {
+			send(exchange, 403, "text/plain", bytes("Error=BadAuthentication\n"));
+			return;
+		}
+		send(exchange, 200, "text/plain", bytes("SID=stub\nLSID=stub\nAuth=" + token + "\n"));
+	}
+
+	private void feed(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		String start = null;
+		if (query != null && query.startsWith("startUsername=")) {
+			start = decode(query.substring("startUsername=".length()));
+		}
+		Map<String, StubUser> page = start == null ? users : users.tailMap(start, true);
+		StringBuilder builder = new StringBuilder(pageSize * 400);
+		builder.append("<?xml version='1.0' encoding='UTF-8'?>");
+		builder.append("<feed xmlns='").append(GoogleConstants.ATOM_NAMESPACE).append("' xmlns:apps='")
+		        .append(GoogleConstants.GOOGLE_NAMESPACE).append("'>");
+		builder.append("<id>").append(getBaseUrl()).append("</id>");
+		StringBuilder entries = new StringBuilder(pageSize * 400);
+		int count = 0;
+		for (StubUser user : page.values()) {
+			if (count == pageSize) {
+				builder.append("<link rel='next' type='application/atom+xml' href='").append(getBaseUrl())
+				        .append("?startUsername=").append(URLEncoder.encode(username(user.email), "UTF-8"))
+				        .append("'/>");
+				break;
+			}
+			user.appendEntry(entries, getBaseUrl());
+			count++;
+		}
+		builder.append(entries).append("</feed>");
+		send(exchange, 200, ATOM, bytes(builder.toString()));
+	}
+
+	private void orgUnitFeed(HttpExchange exchange) throws IOException {
+		StringBuilder builder = new StringBuilder(orgUnits.size() * 400);
+		builder.append("<?xml version='1.0' encoding='UTF-8'?>");
+		builder.append("<feed xmlns='").append(GoogleConstants.ATOM_NAMESPACE).append("' xmlns:apps='")
+		        .append(GoogleConstants.GOOGLE_NAMESPACE).append("'>");
+		for (String orgUnit : orgUnits) {
+			int slash = orgUnit.lastIndexOf('/');
+			builder.append("<entry><id>").append(getMoveToGroupUrl()).append(CUSTOMER_ID).append('/')
+			        .append(URLEncoder.encode(orgUnit, "UTF-8")).append("</id>");
+			builder.append("<apps:property name='name' value='").append(orgUnit.substring(slash + 1))
+			        .append("'/>");
+			builder.append("<apps:property name='orgUnitPath' value='").append(orgUnit).append("'/>");
+			builder.append("<apps:property name='parentOrgUnitPath' value='")
+			        .append(slash < 0 ? "" : orgUnit.substring(0, slash)).append("'/>");
+			builder.append("</entry>");
+		}
+		builder.append("</feed>");
+		send(exchange, 200, ATOM, bytes(builder.toString()));
+	}
+
+	private void user(HttpExchange exchange, String email) throws IOException {
+		StubUser user = users.get(username(email));
+		if (user == null) {
+			send(exchange, 400, ATOM, bytes("<AppsForYourDomainErrors><error errorCode='1301' "
+			        + "invalidInput='" + email + "' reason='EntityDoesNotExist' /></AppsForYourDomainErrors>"));
+			return;
+		}
+		StringBuilder builder = new StringBuilder(512);
+		builder.append("<?xml version='1.0' encoding='UTF-8'?>");
+		user.appendEntry(builder, getBaseUrl());
+		sendEntry(exchange, builder.toString(), user.etag());
+	}
+
+	private String customerEntry() {
+		return "<?xml version='1.0' encoding='UTF-8'?><atom:entry xmlns:atom='" + GoogleConstants.ATOM_NAMESPACE
+		        + "' xmlns:apps='" + GoogleConstants.GOOGLE_NAMESPACE + "'><atom:id>" + getUrl(CUSTOMER_PATH)
+		        + "</atom:id><apps:property name='customerId' value='" + CUSTOMER_ID
+		        + "'/><apps:property name='customerOrgUnitName' value='" + DOMAIN + "'/></atom:entry>";
+	}
+
+	private void move(HttpExchange exchange, String customerAndOrgUnit) throws IOException {
+		int slash = customerAndOrgUnit.indexOf('/');
+		if (slash < 0 || !customerAndOrgUnit.substring(0, slash).equals(CUSTOMER_ID)) {
+			send(exchange, 400, "text/plain", bytes("Unknown customer"));
+			return;
+		}
+		String orgUnit = customerAndOrgUnit.substring(slash + 1);
+		if (!orgUnits.contains(orgUnit)) {
+			send(exchange, 400, ATOM, bytes("<AppsForYourDomainErrors><error errorCode='1301' "
+			        + "invalidInput='" + orgUnit + "' reason='EntityDoesNotExist' /></AppsForYourDomainErrors>"));
+			return;
+		}
+		String body = new String(read(exchange.getRequestBody()), "UTF-8");
+		Matcher matcher = USERS_TO_MOVE.matcher(body);
+		if (!matcher.find()) {
+			send(exchange, 400, "text/plain", bytes("No usersToMove"));
+			return;
+		}
+		for (String email : matcher.group(1).split(",")) {
+			StubUser user = users.get(username(email.trim()));
+			if (user != null) {
+				user.moveTo(orgUnit);
+			}
+		}
+		send(exchange, 200, ATOM, bytes(body));
+	}
+
+	private void sendEntry(HttpExchange exchange, String entry, String etag) throws IOException {
+		String quoted = "W/\"" + etag + "\"";
+		exchange.getResponseHeaders().set("ETag", quoted);
+		if (quoted.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			notModified.incrementAndGet();
+			// drained, or the server closes the connection after the headers
+			exchange.getRequestBody().close();
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		send(exchange, 200, ATOM, bytes(entry));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+	        throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip") && body.length > 256) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(body);
+			out.close();
+			body = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static String username(String email) {
+		int at = email.indexOf('@');
+		return at < 0 ? email : email.substring(0, at);
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class StubUser {
+
+		private final String email;
+		private final String firstName;
+		private final String lastName;
+		private volatile String orgUnitPath = "/";
+		private volatile int version = 1;
+
+		StubUser(String email, String firstName, String lastName) {
+			this.email = email;
+			this.firstName = firstName;
+			this.lastName = lastName;
+		}
+
+		synchronized void moveTo(String orgUnit) {
+			orgUnitPath = orgUnit;
+			version++;
+		}
+
+		String etag() {
+			return email + "-" + version;
+		}
+
+		void appendEntry(StringBuilder builder, String baseUrl) {
+			builder.append("<entry xmlns='").append(GoogleConstants.ATOM_NAMESPACE).append("' xmlns:apps='")
+			        .append(GoogleConstants.GOOGLE_NAMESPACE).append("'>");
+			builder.append("<id>").append(baseUrl).append(email).append("</id>");
+			property(builder, GoogleConstants.USER_EMAIL_MESSAGE_FIELD, email);
+			property(builder, "firstName", firstName);
+			property(builder, "lastName", lastName);
+			property(builder, GoogleConstants.IS_SUSPENDED_MESSAGE_FIELD, "false");
+			property(builder, "orgUnitPath", orgUnitPath);
+			builder.append("</entry>");
+		}
+
+		private static void property(StringBuilder builder, String name, String value) {
+			builder.append("<apps:property name='").append(name).append("' value='").append(value).append("'/>");
+		}
+	}
+}
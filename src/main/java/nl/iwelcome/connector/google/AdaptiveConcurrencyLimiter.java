@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+/**
+ * Limits the number of concurrent calls with an additive increase,
+ * multiplicative decrease policy: while the calls in flight reach the limit,
+ * every successful call raises it by roughly one per window of calls. A
+ * throttled call halves it, once per window: throttled calls admitted before
+ * the last decrease, at the old limit, leave it as is.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	private static final double DECREASE_FACTOR = 0.5;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private double limit;
+	private int inFlight;
+	// the number of calls admitted, and that number at the last decrease
+	private long admitted;
+	private long decreasedAt;
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param initialLimit
+	 *            The number of concurrent calls allowed at first.
+	 * @param minLimit
+	 *            The lowest limit backing off can reach.
+	 * @param maxLimit
+	 *            The highest limit growing can reach.
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("need 1 <= minLimit <= maxLimit");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+	}
+
+	/**
+	 * Waits until a call may start.
+	 * 
+	 * @return The ticket of the call, to pass to {@link #onThrottled(long)}.
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+		return admitted++;
+	}
+
+	/**
+	 * Ends a call that was answered normally, growing the limit only when it
+	 * was reached; a limit that is not used says nothing about the capacity.
+	 */
+	public synchronized void onSuccess() {
+		if (inFlight >= (int) limit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		release();
+	}
+
+	/**
+	 * Ends a call that was throttled by Google.
+	 * 
+	 * @param ticket
+	 *            The ticket {@link #acquire()} returned for the call.
+	 */
+	public synchronized void onThrottled(long ticket) {
+		if (ticket >= decreasedAt) {
+			limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+			decreasedAt = admitted;
+		}
+		release();
+	}
+
+	/**
+	 * Ends a call that failed for another reason, leaving the limit as is.
+	 */
+	public synchronized void onIgnored() {
+		release();
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	private void release() {
+		inFlight--;
+		notifyAll();
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.CompletableFuture;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+/**
+ * The non-blocking counterpart of {@link GoogleAppsOperations}. Every
+ * operation returns immediately with a future completing when the call has
+ * been answered.
+ */
+public interface AsyncGoogleAppsOperations {
+
+	<T> CompletableFuture<T> doWithCallback(ReaderCallback<T> callback);
+
+	CompletableFuture<byte[]> getUser(String token, String name);
+
+	CompletableFuture<byte[]> getAllUser(String token);
+
+	CompletableFuture<byte[]> getCustomerId(String token);
+
+	CompletableFuture<byte[]> moveUserToGroup(String token, String customerId, String orgUnit,
+	        GoogleAtom usersToMoveMessage);
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+/**
+ * An implementation of {@link AsyncGoogleAppsOperations} running the calls of
+ * a {@link GoogleAppsTemplate} on an executor, with at most a fixed number of
+ * calls in flight. Calls beyond that limit are queued without holding a
+ * thread, and run by the thread of a call that completes.
+ * Typically used like this:
+ * 
+ * <pre>
+ * AsyncGoogleAppsTemplate async = new AsyncGoogleAppsTemplate(template,
+ *            AsyncGoogleAppsTemplate.newThreadPerTaskExecutor(), 1000);
+ * async.getUser(token, &quot;liz&quot;).thenAccept(...);
+ * </pre>
+ */
+public class AsyncGoogleAppsTemplate implements AsyncGoogleAppsOperations {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+	private final GoogleAppsTemplate template;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	// calls waiting for one of the running calls to complete
+	private final Queue<Call<?>> waiting = new ArrayDeque<Call<?>>();
+	private int running;
+
+	public AsyncGoogleAppsTemplate(GoogleAppsTemplate template) {
+		this(template, newThreadPerTaskExecutor(), DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param template
+	 *            The template performing the calls.
+	 * @param executor
+	 *            The executor running the calls.
+	 * @param maxInFlight
+	 *            The maximum number of calls executing at the same time.
+	 */
+	public AsyncGoogleAppsTemplate(GoogleAppsTemplate template, ExecutorService executor, int maxInFlight) {
+		this.template = template;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Returns an executor starting a virtual thread per task when the JVM
+	 * supports it, and a cached pool of daemon threads otherwise.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new NamedThreadFactory("google-async"));
+		}
+	}
+
+	@Override
+	public <T> CompletableFuture<T> doWithCallback(final ReaderCallback<T> callback) {
+		return submit(new Supplier<T>() {
+			@Override
+			public T get() {
+				return template.doWithCallback(callback);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getUser(final String token, final String name) {
+		return submit(new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return template.getUser(token, name);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAllUser(final String token) {
+		return submit(new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return template.getAllUser(token);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getCustomerId(final String token) {
+		return submit(new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return template.getCustomerId(token);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<byte[]> moveUserToGroup(final String token, final String customerId,
+	        final String orgUnit, final GoogleAtom usersToMoveMessage) {
+		return submit(new Supplier<byte[]>() {
+			@Override
+			public byte[] get() {
+				return template.moveUserToGroup(token, customerId, orgUnit, usersToMoveMessage);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves a token to be included in editing type of calls.
+	 */
+	public CompletableFuture<String> getToken() {
+		return submit(new Supplier<String>() {
+			@Override
+			public String get() {
+				return template.getToken();
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of calls executing right now.
+	 */
+	public int getInFlight() {
+		synchronized (waiting) {
+			return running;
+		}
+	}
+
+	/**
+	 * Returns the number of calls waiting for a running call to complete.
+	 */
+	public int getQueued() {
+		synchronized (waiting) {
+			return waiting.size();
+		}
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Stops accepting calls, calls already submitted still complete.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+		Call<T> call = new Call<T>(supplier);
+		synchronized (waiting) {
+			if (running >= maxInFlight) {
+				waiting.add(call);
+				return call.result;
+			}
+			running++;
+		}
+		start(call);
+		return call.result;
+	}
+
+	/**
+	 * Hands the call to the executor. When the executor refuses, the call
+	 * fails and its permit goes to the next waiting call.
+	 */
+	private void start(Call<?> call) {
+		while (call != null) {
+			try {
+				executor.execute(call);
+				return;
+			} catch (RejectedExecutionException e) {
+				call.result.completeExceptionally(e);
+				call = next();
+			}
+		}
+	}
+
+	/**
+	 * Returns the waiting call taking over the permit of a completed one, or
+	 * releases the permit when none is waiting.
+	 */
+	private Call<?> next() {
+		synchronized (waiting) {
+			Call<?> next = waiting.poll();
+			if (next == null) {
+				running--;
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * A call, run by the thread of the call it follows when it had to wait.
+	 */
+	private class Call<T> implements Runnable {
+
+		private final Supplier<T> supplier;
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		public Call(Supplier<T> supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public void run() {
+			Call<?> call = this;
+			while (call != null) {
+				Runnable completion = call.execute();
+				// the permit is passed on before dependent stages run
+				call = next();
+				completion.run();
+			}
+		}
+
+		private Runnable execute() {
+			try {
+				final T value = supplier.get();
+				return new Runnable() {
+					@Override
+					public void run() {
+						result.complete(value);
+					}
+				};
+			} catch (Throwable e) {
+				// wrapped as supplyAsync does
+				final Throwable failure = e instanceof CompletionException ? e : new CompletionException(e);
+				return new Runnable() {
+					@Override
+					public void run() {
+						result.completeExceptionally(failure);
+					}
+				};
+			}
+		}
+	}
+}
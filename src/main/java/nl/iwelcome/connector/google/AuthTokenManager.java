@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the ClientLogin token of a template. Only one thread authenticates at
+ * a time, all other threads wait for its result. A token older than the
+ * refresh age is renewed by a single thread while the others keep using it; a
+ * token older than the maximum age is never handed out.
+ */
+public class AuthTokenManager {
+
+	/**
+	 * ClientLogin tokens are valid for two weeks, renew well before that.
+	 */
+	public static final long DEFAULT_REFRESH_AGE = TimeUnit.HOURS.toMillis(24);
+	public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(13);
+
+	/**
+	 * Performs the actual login.
+	 */
+	public interface Authenticator {
+		String authenticate();
+	}
+
+	private final Authenticator authenticator;
+	private final long refreshAge;
+	private final long maxAge;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	private volatile Token current;
+
+	public AuthTokenManager(Authenticator authenticator) {
+		this(authenticator, DEFAULT_REFRESH_AGE, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param authenticator
+	 *            Performs the login.
+	 * @param refreshAge
+	 *            The age in milliseconds after which a token is renewed. The
+	 *            first caller past this age logs in synchronously, the others
+	 *            keep using the current token meanwhile.
+	 * @param maxAge
+	 *            The age in milliseconds after which a token is no longer used.
+	 */
+	public AuthTokenManager(Authenticator authenticator, long refreshAge, long maxAge) {
+		this.authenticator = authenticator;
+		this.refreshAge = refreshAge;
+		this.maxAge = Math.max(refreshAge, maxAge);
+	}
+
+	/**
+	 * Returns a usable token, authenticating first when needed.
+	 */
+	public String getToken() {
+		Token token = current;
+		if (token == null || token.age() >= maxAge) {
+			return refresh(token);
+		}
+		if (token.age() >= refreshAge && lock.tryLock()) {
+			try {
+				if (current == token) {
+					token = login();
+					current = token;
+				}
+			} catch (RuntimeException e) {
+				// keep using the current token, it has not expired yet
+			} finally {
+				lock.unlock();
+			}
+		}
+		return token.value;
+	}
+
+	/**
+	 * Returns the current token without authenticating, or <code>null</code>.
+	 */
+	public String peek() {
+		Token token = current;
+		return token == null ? null : token.value;
+	}
+
+	/**
+	 * Reports a token as rejected by Google and returns a fresh one. When
+	 * another thread already replaced the rejected token, its replacement is
+	 * returned without authenticating again.
+	 */
+	public String renew(String rejected) {
+		Token token = current;
+		if (token != null && !token.value.equals(rejected)) {
+			return token.value;
+		}
+		return refresh(token);
+	}
+
+	/**
+	 * Drops the current token, the next call authenticates again.
+	 */
+	public void invalidate() {
+		current = null;
+	}
+
+	/**
+	 * Indicates if a token is available that has not expired, without any
+	 * remote call.
+	 */
+	public boolean isValid() {
+		Token token = current;
+		return token != null && token.age() < maxAge;
+	}
+
+	/**
+	 * Returns the number of logins performed.
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	private String refresh(Token seen) {
+		lock.lock();
+		try {
+			Token token = current;
+			if (token == null || token == seen || token.age() >= maxAge) {
+				token = login();
+				current = token;
+			}
+			return token.value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Token login() {
+		String value = authenticator.authenticate();
+		if (value == null) {
+			throw new IllegalStateException("Authentication did not return a token");
+		}
+		refreshCount.incrementAndGet();
+		return new Token(value);
+	}
+
+	private static class Token {
+
+		private final String value;
+		private final long issuedAt = System.currentTimeMillis();
+
+		private Token(String value) {
+			this.value = value;
+		}
+
+		private long age() {
+			return System.currentTimeMillis() - issuedAt;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Stops calling Google while it is unhealthy. After a number of consecutive
+ * server, I/O or throttling failures the breaker opens and calls fail
+ * immediately. Once the open period has passed a single trial call is let
+ * through: its success closes the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = TimeUnit.SECONDS.toMillis(30);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDuration;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile State state = State.CLOSED;
+	private volatile long openedAt;
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param failureThreshold
+	 *            The number of consecutive failures opening the breaker.
+	 * @param openDuration
+	 *            The time in milliseconds the breaker stays open.
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * Checks if a call may proceed. The outcome of the call must be reported
+	 * with {@link #onSuccess(boolean)} or {@link #onFailure(RuntimeException, boolean)},
+	 * or else with {@link #release(boolean)}.
+	 * 
+	 * @return <code>true</code> when the call is the trial of the half open
+	 *         breaker.
+	 * @throws CircuitBreakerOpenException
+	 *             when the breaker is open.
+	 */
+	public boolean acquirePermission() {
+		if (state == State.CLOSED) {
+			return false;
+		}
+		synchronized (this) {
+			if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+		}
+		rejected.incrementAndGet();
+		throw new CircuitBreakerOpenException("Circuit breaker is " + state + ", not calling Google");
+	}
+
+	/**
+	 * Reports a call that was answered normally. Only the trial closes the
+	 * breaker, calls let through before it opened do not.
+	 */
+	public void onSuccess(boolean trial) {
+		consecutiveFailures.set(0);
+		if (trial) {
+			synchronized (this) {
+				if (state == State.HALF_OPEN) {
+					state = State.CLOSED;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports a failed call, only failures that say something about the health
+	 * of Google count. A failed trial opens the breaker again.
+	 */
+	public void onFailure(RuntimeException failure, boolean trial) {
+		if (!isUnhealthy(failure)) {
+			onSuccess(trial);
+			return;
+		}
+		int failures = consecutiveFailures.incrementAndGet();
+		synchronized (this) {
+			if ((trial && state == State.HALF_OPEN) || (state == State.CLOSED && failures >= failureThreshold)) {
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Reports a call that ended without an outcome, for instance by an error.
+	 * When it was the trial, the next call becomes the trial.
+	 */
+	public void release(boolean trial) {
+		if (trial) {
+			synchronized (this) {
+				if (state == State.HALF_OPEN) {
+					state = State.OPEN;
+					openedAt = System.currentTimeMillis() - openDuration;
+				}
+			}
+		}
+	}
+
+	protected boolean isUnhealthy(RuntimeException failure) {
+		return failure instanceof HttpServerErrorException || failure instanceof ResourceAccessException
+		        || RequestLimiter.isThrottled(failure);
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+
+	/**
+	 * Returns the number of calls refused while the breaker was not closed.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreaker [state=" + state + ", consecutiveFailures=" + getConsecutiveFailures()
+		        + ", rejected=" + getRejectedCount() + "]";
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Negotiates compressed transfers. Every request advertises gzip and deflate
+ * in its Accept-Encoding header and carries a User-Agent containing "gzip", as
+ * Google Data requires before it compresses a response. Compressed responses
+ * are inflated while they are read, so converters only see the plain body.
+ * Request bodies are compressed when enabled with
+ * {@link #setCompressRequests(boolean)}.
+ */
+public class CompressingClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+	public static final String DEFAULT_USER_AGENT = "google-apps-service (gzip)";
+
+	private static final String GZIP = "gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String USER_AGENT = "User-Agent";
+
+	private final ClientHttpRequestFactory factory;
+
+	private volatile String userAgent = DEFAULT_USER_AGENT;
+	private volatile boolean compressRequests;
+
+	public CompressingClientHttpRequestFactory(ClientHttpRequestFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		ClientHttpRequest request = factory.createRequest(uri, httpMethod);
+		HttpHeaders headers = request.getHeaders();
+		headers.set(ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+		if (userAgent != null) {
+			headers.set(USER_AGENT, userAgent);
+		}
+		// only updates, the ClientLogin POST is a form Google reads uncompressed
+		boolean compressBody = compressRequests && httpMethod == HttpMethod.PUT;
+		return new CompressingClientHttpRequest(request, compressBody);
+	}
+
+	/**
+	 * Sets the User-Agent of all requests, which must contain "gzip" for Google
+	 * to compress its responses; <code>null</code> leaves the header alone.
+	 */
+	public void setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * Indicates if the bodies of PUT requests are sent gzipped.
+	 */
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+
+	/**
+	 * Returns the factory creating the actual requests.
+	 */
+	public ClientHttpRequestFactory getRequestFactory() {
+		return factory;
+	}
+
+	private static class CompressingClientHttpRequest implements ClientHttpRequest {
+
+		private final ClientHttpRequest decorated;
+		private final boolean compressBody;
+		private GZIPOutputStream body;
+
+		public CompressingClientHttpRequest(ClientHttpRequest request, boolean compressBody) {
+			this.decorated = request;
+			this.compressBody = compressBody;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return decorated.getMethod();
+		}
+
+		@Override
+		public URI getURI() {
+			return decorated.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return decorated.getHeaders();
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			if (!compressBody) {
+				return decorated.getBody();
+			}
+			if (body == null) {
+				decorated.getHeaders().set(CONTENT_ENCODING, GZIP);
+				body = new GZIPOutputStream(decorated.getBody(), 8192);
+			}
+			return body;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			if (body != null) {
+				body.finish();
+				// the converter set the length of the uncompressed body
+				decorated.getHeaders().remove(CONTENT_LENGTH);
+			}
+			return new InflatingClientHttpResponse(decorated.execute());
+		}
+	}
+
+	private static class InflatingClientHttpResponse implements ClientHttpResponse {
+
+		private final ClientHttpResponse decorated;
+		private final String encoding;
+		private HttpHeaders headers;
+		private InputStream body;
+
+		public InflatingClientHttpResponse(ClientHttpResponse response) {
+			this.decorated = response;
+			String contentEncoding = response.getHeaders().getFirst(CONTENT_ENCODING);
+			this.encoding = contentEncoding == null ? null : contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return decorated.getStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return decorated.getStatusText();
+		}
+
+		/**
+		 * Returns the headers of the inflated body, without the encoding and
+		 * the length of the compressed one.
+		 */
+		@Override
+		public HttpHeaders getHeaders() {
+			if (!isCompressed()) {
+				return decorated.getHeaders();
+			}
+			if (headers == null) {
+				// copied one by one, putAll and remove ignore the case insensitive keys
+				headers = new HttpHeaders();
+				for (Map.Entry<String, List<String>> entry : decorated.getHeaders().entrySet()) {
+					if (entry.getKey() != null && !CONTENT_ENCODING.equalsIgnoreCase(entry.getKey())
+					        && !CONTENT_LENGTH.equalsIgnoreCase(entry.getKey())) {
+						headers.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+					}
+				}
+			}
+			return headers;
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (body == null) {
+				InputStream in = decorated.getBody();
+				HttpStatus status = decorated.getStatusCode();
+				if (status == HttpStatus.NO_CONTENT || status == HttpStatus.NOT_MODIFIED) {
+					// no body to inflate, whatever the headers say
+					body = in;
+				} else if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+					body = new GZIPInputStream(in, 8192);
+				} else if (DEFLATE.equals(encoding)) {
+					body = new InflaterInputStream(in);
+				} else {
+					body = in;
+				}
+			}
+			return body;
+		}
+
+		@Override
+		public void close() {
+			decorated.close();
+		}
+
+		private boolean isCompressed() {
+			return GZIP.equals(encoding) || "x-gzip".equals(encoding) || DEFLATE.equals(encoding);
+		}
+	}
+}
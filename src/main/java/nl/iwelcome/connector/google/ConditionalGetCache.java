@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.client.HttpMessageConverterExtractor;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * Keeps the ETag and the parsed representation of the resources read with
+ * {@link #get(RestOperations, URI, Class)}. The next read of a resource sends
+ * its ETag in an If-None-Match header, and a 304 answer is served from the
+ * cache. Every read is checked with Google, so the cache never serves stale
+ * data. Every caller gets its own copy; types that cannot be copied, see
+ * {@link Representations}, are not cached. When full, the least recently used
+ * resource is dropped. Instances are thread-safe.
+ * <p>
+ * Only single resources are revalidated, the users and the customer record.
+ * Feed pages, among which the organization units, are parsed while they are
+ * read and always downloaded, and the whole user feed is not kept because a
+ * second copy of it would double the memory of every export.
+ */
+public class ConditionalGetCache {
+
+	public static final int DEFAULT_MAX_SIZE = 100;
+
+	private final int maxSize;
+	private final List<HttpMessageConverter<?>> converters;
+
+	private final Map<String, Entry> entries;
+	private final ConcurrentMap<Class<?>, List<MediaType>> acceptTypes =
+	        new ConcurrentHashMap<Class<?>, List<MediaType>>();
+
+	private final AtomicLong notModifiedCount = new AtomicLong();
+	private final AtomicLong modifiedCount = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of resources kept.
+	 * @param converters
+	 *            The converters reading the responses.
+	 */
+	public ConditionalGetCache(final int maxSize, List<HttpMessageConverter<?>> converters) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.converters = converters;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ConditionalGetCache.Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Reads a resource, sending the ETag of the cached representation when
+	 * there is one.
+	 */
+	public <T> T get(RestOperations operations, URI uri, final Class<T> type) {
+		final String key = type.getName() + ' ' + uri;
+		final Entry cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+		}
+		return operations.execute(uri, HttpMethod.GET, new RequestCallback() {
+			@Override
+			public void doWithRequest(ClientHttpRequest request) throws IOException {
+				request.getHeaders().setAccept(getAcceptTypes(type));
+				if (cached != null) {
+					request.getHeaders().set("If-None-Match", cached.etag);
+				}
+			}
+		}, new ResponseExtractor<T>() {
+			@Override
+			public T extractData(ClientHttpResponse response) throws IOException {
+				if (cached != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+					notModifiedCount.incrementAndGet();
+					return Representations.copy(type.cast(cached.value));
+				}
+				modifiedCount.incrementAndGet();
+				T value = new HttpMessageConverterExtractor<T>(type, converters).extractData(response);
+				String etag = response.getHeaders().getFirst("ETag");
+				synchronized (entries) {
+					if (etag != null && value != null && Representations.isCopyable(type)) {
+						entries.put(key, new Entry(etag, Representations.copy(value)));
+					} else {
+						entries.remove(key);
+					}
+				}
+				return value;
+			}
+		});
+	}
+
+	/**
+	 * Drops all cached representations.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of reads answered with 304 and served from the cache.
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	/**
+	 * Returns the number of reads that downloaded the resource.
+	 */
+	public long getModifiedCount() {
+		return modifiedCount.get();
+	}
+
+	private List<MediaType> getAcceptTypes(Class<?> type) {
+		List<MediaType> result = acceptTypes.get(type);
+		if (result == null) {
+			result = new ArrayList<MediaType>();
+			for (HttpMessageConverter<?> converter : converters) {
+				if (converter.canRead(type, null)) {
+					for (MediaType mediaType : converter.getSupportedMediaTypes()) {
+						if (mediaType.getCharSet() != null) {
+							mediaType = new MediaType(mediaType.getType(), mediaType.getSubtype());
+						}
+						if (!result.contains(mediaType)) {
+							result.add(mediaType);
+						}
+					}
+				}
+			}
+			MediaType.sortBySpecificity(result);
+			acceptTypes.putIfAbsent(type, result);
+		}
+		return result;
+	}
+
+	private static final class Entry {
+
+		private final String etag;
+		private final Object value;
+
+		Entry(String etag, Object value) {
+			this.etag = etag;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Serves users and the customer record from a {@link DirectorySnapshot} file,
+ * which survives restarts, and replaces the snapshot with a fresh one in the
+ * background once it is older than the refresh interval; after a failed
+ * refresh the next one waits for a delay that doubles with every failure, up
+ * to the refresh interval. Users changed through this process after the
+ * snapshot was started, see {@link #invalidate(String)}, are not served from
+ * it. Instances are thread-safe.
+ */
+public class DirectoryCache {
+
+	public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	private static final long MIN_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+	private static final Log LOG = LogFactory.getLog(DirectoryCache.class);
+
+	/**
+	 * Reads the customer record and all users from Google into the writer.
+	 */
+	public interface Loader {
+		void load(DirectorySnapshot.Writer writer) throws IOException;
+	}
+
+	private final File file;
+	private final long refreshInterval;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory(
+	        "google-directory"));
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	// the delay after the last failed background refresh, guarded by refreshing
+	private long retryDelay;
+	private volatile long retryAt;
+
+	private volatile DirectorySnapshot snapshot;
+	// user name to the time it was invalidated
+	private final ConcurrentMap<String, Long> invalidated = new ConcurrentHashMap<String, Long>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructs a new instance, mapping the snapshot in the file when there
+	 * is one. A file that cannot be read is ignored until the first refresh
+	 * replaces it.
+	 * 
+	 * @param refreshInterval
+	 *            The age in milliseconds after which the snapshot is stale.
+	 */
+	public DirectoryCache(File file, long refreshInterval) {
+		this.file = file;
+		this.refreshInterval = refreshInterval;
+		try {
+			snapshot = DirectorySnapshot.open(file);
+		} catch (IOException e) {
+			LOG.warn("Ignoring directory snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the entry of the user, or <code>null</code> when it is not in
+	 * the snapshot or has been invalidated since.
+	 */
+	public byte[] getUser(String username) {
+		DirectorySnapshot current = snapshot;
+		byte[] entry = null;
+		if (current != null && !invalidated.containsKey(username.toLowerCase(Locale.ENGLISH))) {
+			entry = current.getUser(username);
+		}
+		(entry == null ? misses : hits).incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Returns the customer record, or <code>null</code> when there is no
+	 * snapshot.
+	 */
+	public byte[] getCustomer() {
+		DirectorySnapshot current = snapshot;
+		return current == null ? null : current.getCustomer();
+	}
+
+	/**
+	 * Stops serving the user from the current snapshot, typically after it
+	 * was changed.
+	 */
+	public void invalidate(String username) {
+		invalidated.put(username.toLowerCase(Locale.ENGLISH), System.currentTimeMillis());
+	}
+
+	public DirectorySnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Indicates if there is no snapshot or it is older than the refresh
+	 * interval.
+	 */
+	public boolean isStale() {
+		DirectorySnapshot current = snapshot;
+		return current == null || System.currentTimeMillis() - current.getCreatedAt() >= refreshInterval;
+	}
+
+	/**
+	 * Refreshes the snapshot on the background thread unless a refresh is
+	 * already running.
+	 * 
+	 * @return The refresh, or <code>null</code> when one was running.
+	 */
+	public Future<?> refreshInBackground(final Loader loader) {
+		if (!refreshing.compareAndSet(false, true)) {
+			return null;
+		}
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load(loader);
+					retryDelay = 0;
+					retryAt = 0;
+				} catch (IOException e) {
+					failed(e);
+				} catch (RuntimeException e) {
+					failed(e);
+				} finally {
+					refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Refreshes the snapshot when it is stale, on the background thread,
+	 * unless the last refresh failed less than the retry delay ago.
+	 */
+	public void refreshIfStale(Loader loader) {
+		if (isStale() && System.currentTimeMillis() >= retryAt) {
+			refreshInBackground(loader);
+		}
+	}
+
+	/**
+	 * Reads a new snapshot on the calling thread and serves from it.
+	 */
+	public void refresh(Loader loader) throws IOException {
+		load(loader);
+	}
+
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Stops the background thread, the snapshot keeps being served.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void failed(Exception e) {
+		retryDelay = Math.min(Math.max(retryDelay * 2, MIN_RETRY_DELAY), Math.max(refreshInterval, MIN_RETRY_DELAY));
+		retryAt = System.currentTimeMillis() + retryDelay;
+		LOG.warn("Unable to refresh directory snapshot " + file + ", retrying in " + retryDelay + " ms", e);
+	}
+
+	private void load(Loader loader) throws IOException {
+		long startedAt = System.currentTimeMillis();
+		DirectorySnapshot loaded;
+		synchronized (this) {
+			DirectorySnapshot.Writer writer = new DirectorySnapshot.Writer(file, startedAt);
+			try {
+				loader.load(writer);
+				writer.commit();
+			} finally {
+				writer.close();
+			}
+			loaded = DirectorySnapshot.open(file);
+		}
+		snapshot = loaded;
+		// changes made while the snapshot was read may be missing from it
+		for (Iterator<Map.Entry<String, Long>> i = invalidated.entrySet().iterator(); i.hasNext();) {
+			if (i.next().getValue() < startedAt) {
+				i.remove();
+			}
+		}
+		LOG.info("Directory snapshot " + file + " refreshed with " + loaded.size() + " users in "
+		        + (System.currentTimeMillis() - startedAt) + " ms");
+	}
+}
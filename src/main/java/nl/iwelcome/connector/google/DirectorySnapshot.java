@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A read-only copy of the users and the customer record of a domain, mapped
+ * from a file, so a restarted process can serve lookups before it has talked
+ * to Google. The file holds length-prefixed records followed by an index of
+ * record offsets sorted by user name and a fixed size trailer:
+ * 
+ * <pre>
+ * int magic, int version
+ * records: int name length, name, int entry length, entry
+ * index:   int record offset, per user, sorted by the UTF-8 bytes of the name
+ * trailer: long created at, int users, long index offset,
+ *          long customer record offset or -1, int version, int magic
+ * </pre>
+ * 
+ * The customer record is a record with an empty name. User names are stored
+ * in lower case. Lookups search the index in the mapped file, so opening a
+ * snapshot reads nothing but the trailer. Files are limited to 2 GB.
+ * Instances are thread-safe.
+ */
+public class DirectorySnapshot {
+
+	private static final int MAGIC = 0x47414453;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int TRAILER_SIZE = 36;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] left, byte[] right) {
+			int length = Math.min(left.length, right.length);
+			for (int i = 0; i < length; i++) {
+				int difference = (left[i] & 0xff) - (right[i] & 0xff);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return left.length - right.length;
+		}
+	};
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final long createdAt;
+	private final int size;
+	private final int indexOffset;
+	private final int customerOffset;
+
+	private DirectorySnapshot(File file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		int trailer = buffer.capacity() - TRAILER_SIZE;
+		if (trailer < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+		        || buffer.getInt(trailer + 32) != MAGIC || buffer.getInt(trailer + 28) != VERSION) {
+			throw new IOException("Not a directory snapshot: " + file);
+		}
+		this.createdAt = buffer.getLong(trailer);
+		this.size = buffer.getInt(trailer + 8);
+		long index = buffer.getLong(trailer + 12);
+		long customer = buffer.getLong(trailer + 20);
+		if (size < 0 || index < HEADER_SIZE || index + 4L * size != trailer || customer >= index) {
+			throw new IOException("Corrupt directory snapshot: " + file);
+		}
+		this.indexOffset = (int) index;
+		this.customerOffset = (int) customer;
+	}
+
+	/**
+	 * Maps the snapshot in the file, or returns <code>null</code> when there
+	 * is no such file.
+	 */
+	public static DirectorySnapshot open(File file) throws IOException {
+		RandomAccessFile in;
+		try {
+			in = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Directory snapshot larger than 2 GB: " + file);
+			}
+			// the mapping stays valid after the channel is closed
+			return new DirectorySnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the time in milliseconds the snapshot was started, entries
+	 * changed after it may be outdated.
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * Returns the number of users.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the entry of the user, or <code>null</code> when the snapshot
+	 * does not hold the user.
+	 */
+	public byte[] getUser(String username) {
+		byte[] key = username.toLowerCase(Locale.ENGLISH).getBytes(UTF_8);
+		ByteBuffer view = buffer.duplicate();
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int record = view.getInt(indexOffset + 4 * middle);
+			int comparison = compareName(view, record, key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return readEntry(view, record);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the customer record, or <code>null</code> when the snapshot has
+	 * none.
+	 */
+	public byte[] getCustomer() {
+		return customerOffset < 0 ? null : readEntry(buffer.duplicate(), customerOffset);
+	}
+
+	/**
+	 * Returns the user names in index order.
+	 */
+	public List<String> getUsernames() {
+		ByteBuffer view = buffer.duplicate();
+		List<String> usernames = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			int record = view.getInt(indexOffset + 4 * i);
+			byte[] name = new byte[view.getInt(record)];
+			// through Buffer, ByteBuffer.position(int) does not exist on Java 8
+			((Buffer) view).position(record + 4);
+			view.get(name);
+			usernames.add(new String(name, UTF_8));
+		}
+		return usernames;
+	}
+
+	private static int compareName(ByteBuffer view, int record, byte[] key) {
+		int length = view.getInt(record);
+		int common = Math.min(length, key.length);
+		for (int i = 0; i < common; i++) {
+			int difference = (view.get(record + 4 + i) & 0xff) - (key[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - key.length;
+	}
+
+	private static byte[] readEntry(ByteBuffer view, int record) {
+		int entryOffset = record + 4 + view.getInt(record);
+		byte[] entry = new byte[view.getInt(entryOffset)];
+		((Buffer) view).position(entryOffset + 4);
+		view.get(entry);
+		return entry;
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file next to the file, which replaces
+	 * the file on {@link #commit()}. The records are written as they are
+	 * added, only the names and offsets are kept in memory. Instances are not
+	 * thread-safe.
+	 */
+	public static class Writer implements Closeable {
+
+		private final File file;
+		private final File temporary;
+		private final FileOutputStream fileOut;
+		private final DataOutputStream out;
+		private final long createdAt;
+		private final List<IndexEntry> index = new ArrayList<IndexEntry>();
+
+		private long customerOffset = -1;
+		private boolean committed;
+
+		/**
+		 * @param createdAt
+		 *            The time in milliseconds the data was started to be
+		 *            read.
+		 */
+		public Writer(File file, long createdAt) throws IOException {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create " + directory);
+			}
+			this.file = file;
+			this.createdAt = createdAt;
+			this.temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			this.fileOut = new FileOutputStream(temporary);
+			this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		/**
+		 * Adds a user, a later entry of the same user replaces an earlier one.
+		 */
+		public void add(String username, byte[] entry) throws IOException {
+			byte[] name = username.toLowerCase(Locale.ENGLISH).getBytes(UTF_8);
+			if (name.length == 0) {
+				throw new IllegalArgumentException("username must not be empty");
+			}
+			index.add(new IndexEntry(name, writeRecord(name, entry)));
+		}
+
+		public void setCustomer(byte[] customer) throws IOException {
+			customerOffset = writeRecord(new byte[0], customer);
+		}
+
+		/**
+		 * Writes the index and the trailer and replaces the file.
+		 */
+		public void commit() throws IOException {
+			// stable, so the last entry of a user comes last among its equals
+			Collections.sort(index);
+			List<IndexEntry> unique = new ArrayList<IndexEntry>(index.size());
+			for (int i = 0; i < index.size(); i++) {
+				if (i + 1 == index.size() || UNSIGNED.compare(index.get(i).name, index.get(i + 1).name) != 0) {
+					unique.add(index.get(i));
+				}
+			}
+			long indexOffset = out.size();
+			checkSize(indexOffset + 4L * unique.size() + TRAILER_SIZE);
+			for (IndexEntry entry : unique) {
+				out.writeInt(entry.offset);
+			}
+			out.writeLong(createdAt);
+			out.writeInt(unique.size());
+			out.writeLong(indexOffset);
+			out.writeLong(customerOffset);
+			out.writeInt(VERSION);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			        StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		/**
+		 * Discards the snapshot unless it was committed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				temporary.delete();
+			}
+		}
+
+		private int writeRecord(byte[] name, byte[] entry) throws IOException {
+			int offset = out.size();
+			checkSize((long) offset + 8 + name.length + entry.length);
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeInt(entry.length);
+			out.write(entry);
+			return offset;
+		}
+
+		private void checkSize(long size) throws IOException {
+			// DataOutputStream.size() stops counting at Integer.MAX_VALUE
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Directory snapshot larger than 2 GB: " + file);
+			}
+		}
+	}
+
+	private static final class IndexEntry implements Comparable<IndexEntry> {
+
+		private final byte[] name;
+		private final int offset;
+
+		IndexEntry(byte[] name, int offset) {
+			this.name = name;
+			this.offset = offset;
+		}
+
+		@Override
+		public int compareTo(IndexEntry other) {
+			return UNSIGNED.compare(name, other.name);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+/**
+ * Holds the domain metadata needed by editing calls: the customer record. The
+ * metadata is loaded once and shared by all threads until its time to live
+ * expires or until {@link #invalidate()} is called.
+ */
+public class DomainMetadataCache {
+
+	public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * Loads fresh metadata from Google, called by at most one thread at a time.
+	 */
+	public interface Loader {
+		DomainMetadata load();
+	}
+
+	private final Loader loader;
+	private final long timeToLive;
+	private final Object lock = new Object();
+
+	private volatile DomainMetadata current;
+
+	public DomainMetadataCache(Loader loader) {
+		this(loader, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param loader
+	 *            The loader used to fetch the metadata.
+	 * @param timeToLive
+	 *            The time in milliseconds a loaded value stays valid.
+	 */
+	public DomainMetadataCache(Loader loader, long timeToLive) {
+		this.loader = loader;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns the cached metadata, loading it when absent or expired.
+	 */
+	public DomainMetadata get() {
+		DomainMetadata metadata = current;
+		if (isValid(metadata)) {
+			return metadata;
+		}
+		synchronized (lock) {
+			metadata = current;
+			if (!isValid(metadata)) {
+				metadata = loader.load();
+				current = metadata;
+			}
+			return metadata;
+		}
+	}
+
+	/**
+	 * Drops the cached metadata, the next {@link #get()} loads it again.
+	 */
+	public void invalidate() {
+		current = null;
+	}
+
+	private boolean isValid(DomainMetadata metadata) {
+		return metadata != null && System.currentTimeMillis() - metadata.getLoadedAt() < timeToLive;
+	}
+
+	/**
+	 * An immutable snapshot of the customer record.
+	 */
+	public static class DomainMetadata {
+
+		private final GoogleAtom customer;
+		private final long loadedAt;
+
+		public DomainMetadata(GoogleAtom customer) {
+			this.customer = customer;
+			this.loadedAt = System.currentTimeMillis();
+		}
+
+		public GoogleAtom getCustomer() {
+			return customer;
+		}
+
+		public long getLoadedAt() {
+			return loadedAt;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.spi.AbstractConfiguration;
+import org.identityconnectors.framework.spi.ConfigurationProperty;
+
+/**
+ * The configuration of the {@link GoogleAppsConnector}.
+ * <p>
+ * The framework sizes its pool of connector instances from the pool
+ * configuration of the connector facade, not from this class. The pool
+ * settings here only take effect when the application copies them with
+ * {@link #applyTo(ObjectPoolConfiguration)} before it creates the facade.
+ */
+public class GoogleAppsConfiguration extends AbstractConfiguration {
+
+	public static final int DEFAULT_POOL_MAX_OBJECTS = 10;
+	public static final int DEFAULT_POOL_MIN_IDLE = 1;
+	public static final long DEFAULT_POOL_MAX_WAIT = 150 * 1000;
+
+	private String email;
+	private GuardedString password;
+	private String loginUrl;
+	private String baseUrl;
+	private String customerIdUrl;
+	private String moveToGroupUrl;
+	private boolean tracing;
+	private boolean warmUpXml;
+	private int poolMaxObjects = DEFAULT_POOL_MAX_OBJECTS;
+	private int poolMinIdle = DEFAULT_POOL_MIN_IDLE;
+	private long poolMaxWait = DEFAULT_POOL_MAX_WAIT;
+	private String snapshotFile;
+	private int userCacheSize;
+	private long userCacheTimeToLive = UserCache.DEFAULT_TIME_TO_LIVE;
+	private int conditionalGetCacheSize = ConditionalGetCache.DEFAULT_MAX_SIZE;
+	private boolean compressRequests;
+	private double tracingSampleRate = 1.0;
+	private int maxConnections = PooledClientHttpRequestFactory.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int exportParallelism = 1;
+	private String directorySnapshotFile;
+	private long directoryRefreshInterval = DirectoryCache.DEFAULT_REFRESH_INTERVAL;
+
+	@ConfigurationProperty(order = 1, required = true, displayMessageKey = "email.display",
+	        helpMessageKey = "email.help")
+	public String getEmail() {
+		return email;
+	}
+
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	@ConfigurationProperty(order = 2, required = true, confidential = true, displayMessageKey = "password.display",
+	        helpMessageKey = "password.help")
+	public GuardedString getPassword() {
+		return password;
+	}
+
+	public void setPassword(GuardedString password) {
+		this.password = password;
+	}
+
+	@ConfigurationProperty(order = 3, required = true, displayMessageKey = "loginUrl.display",
+	        helpMessageKey = "loginUrl.help")
+	public String getLoginUrl() {
+		return loginUrl;
+	}
+
+	public void setLoginUrl(String loginUrl) {
+		this.loginUrl = loginUrl;
+	}
+
+	@ConfigurationProperty(order = 4, required = true, displayMessageKey = "baseUrl.display",
+	        helpMessageKey = "baseUrl.help")
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	@ConfigurationProperty(order = 5, required = true, displayMessageKey = "customerIdUrl.display",
+	        helpMessageKey = "customerIdUrl.help")
+	public String getCustomerIdUrl() {
+		return customerIdUrl;
+	}
+
+	public void setCustomerIdUrl(String customerIdUrl) {
+		this.customerIdUrl = customerIdUrl;
+	}
+
+	@ConfigurationProperty(order = 6, required = true, displayMessageKey = "moveToGroupUrl.display",
+	        helpMessageKey = "moveToGroupUrl.help")
+	public String getMoveToGroupUrl() {
+		return moveToGroupUrl;
+	}
+
+	public void setMoveToGroupUrl(String moveToGroupUrl) {
+		this.moveToGroupUrl = moveToGroupUrl;
+	}
+
+	@ConfigurationProperty(order = 7, displayMessageKey = "tracing.display", helpMessageKey = "tracing.help")
+	public boolean isTracing() {
+		return tracing;
+	}
+
+	public void setTracing(boolean tracing) {
+		this.tracing = tracing;
+	}
+
+	@ConfigurationProperty(order = 8, displayMessageKey = "warmUpXml.display", helpMessageKey = "warmUpXml.help")
+	public boolean isWarmUpXml() {
+		return warmUpXml;
+	}
+
+	public void setWarmUpXml(boolean warmUpXml) {
+		this.warmUpXml = warmUpXml;
+	}
+
+	@ConfigurationProperty(order = 9, displayMessageKey = "poolMaxObjects.display",
+	        helpMessageKey = "poolMaxObjects.help")
+	public int getPoolMaxObjects() {
+		return poolMaxObjects;
+	}
+
+	public void setPoolMaxObjects(int poolMaxObjects) {
+		this.poolMaxObjects = poolMaxObjects;
+	}
+
+	@ConfigurationProperty(order = 10, displayMessageKey = "poolMinIdle.display", helpMessageKey = "poolMinIdle.help")
+	public int getPoolMinIdle() {
+		return poolMinIdle;
+	}
+
+	public void setPoolMinIdle(int poolMinIdle) {
+		this.poolMinIdle = poolMinIdle;
+	}
+
+	@ConfigurationProperty(order = 11, displayMessageKey = "poolMaxWait.display", helpMessageKey = "poolMaxWait.help")
+	public long getPoolMaxWait() {
+		return poolMaxWait;
+	}
+
+	public void setPoolMaxWait(long poolMaxWait) {
+		this.poolMaxWait = poolMaxWait;
+	}
+
+	@ConfigurationProperty(order = 12, displayMessageKey = "maxConnections.display",
+	        helpMessageKey = "maxConnections.help")
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	@ConfigurationProperty(order = 13, displayMessageKey = "snapshotFile.display",
+	        helpMessageKey = "snapshotFile.help")
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	@ConfigurationProperty(order = 14, displayMessageKey = "userCacheSize.display",
+	        helpMessageKey = "userCacheSize.help")
+	public int getUserCacheSize() {
+		return userCacheSize;
+	}
+
+	public void setUserCacheSize(int userCacheSize) {
+		this.userCacheSize = userCacheSize;
+	}
+
+	@ConfigurationProperty(order = 15, displayMessageKey = "userCacheTimeToLive.display",
+	        helpMessageKey = "userCacheTimeToLive.help")
+	public long getUserCacheTimeToLive() {
+		return userCacheTimeToLive;
+	}
+
+	public void setUserCacheTimeToLive(long userCacheTimeToLive) {
+		this.userCacheTimeToLive = userCacheTimeToLive;
+	}
+
+	@ConfigurationProperty(order = 16, displayMessageKey = "conditionalGetCacheSize.display",
+	        helpMessageKey = "conditionalGetCacheSize.help")
+	public int getConditionalGetCacheSize() {
+		return conditionalGetCacheSize;
+	}
+
+	public void setConditionalGetCacheSize(int conditionalGetCacheSize) {
+		this.conditionalGetCacheSize = conditionalGetCacheSize;
+	}
+
+	@ConfigurationProperty(order = 17, displayMessageKey = "compressRequests.display",
+	        helpMessageKey = "compressRequests.help")
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+
+	@ConfigurationProperty(order = 18, displayMessageKey = "tracingSampleRate.display",
+	        helpMessageKey = "tracingSampleRate.help")
+	public double getTracingSampleRate() {
+		return tracingSampleRate;
+	}
+
+	public void setTracingSampleRate(double tracingSampleRate) {
+		this.tracingSampleRate = tracingSampleRate;
+	}
+
+	@ConfigurationProperty(order = 19, displayMessageKey = "exportParallelism.display",
+	        helpMessageKey = "exportParallelism.help")
+	public int getExportParallelism() {
+		return exportParallelism;
+	}
+
+	public void setExportParallelism(int exportParallelism) {
+		this.exportParallelism = exportParallelism;
+	}
+
+	@ConfigurationProperty(order = 20, displayMessageKey = "directorySnapshotFile.display",
+	        helpMessageKey = "directorySnapshotFile.help")
+	public String getDirectorySnapshotFile() {
+		return directorySnapshotFile;
+	}
+
+	public void setDirectorySnapshotFile(String directorySnapshotFile) {
+		this.directorySnapshotFile = directorySnapshotFile;
+	}
+
+	@ConfigurationProperty(order = 21, displayMessageKey = "directoryRefreshInterval.display",
+	        helpMessageKey = "directoryRefreshInterval.help")
+	public long getDirectoryRefreshInterval() {
+		return directoryRefreshInterval;
+	}
+
+	public void setDirectoryRefreshInterval(long directoryRefreshInterval) {
+		this.directoryRefreshInterval = directoryRefreshInterval;
+	}
+
+	/**
+	 * Copies the pool settings to the pool configuration of the connector
+	 * facade, which the framework uses to keep connector instances. Must be
+	 * called by the application, the framework never reads the pool settings
+	 * of this class.
+	 */
+	public void applyTo(ObjectPoolConfiguration poolConfiguration) {
+		poolConfiguration.setMaxObjects(poolMaxObjects);
+		poolConfiguration.setMaxIdle(poolMaxObjects);
+		poolConfiguration.setMinIdle(poolMinIdle);
+		poolConfiguration.setMaxWait(poolMaxWait);
+	}
+
+	@Override
+	public void validate() {
+		checkNotBlank(email, "email");
+		if (password == null) {
+			throw new ConfigurationException("password must be set");
+		}
+		checkNotBlank(loginUrl, "loginUrl");
+		checkNotBlank(baseUrl, "baseUrl");
+		checkNotBlank(customerIdUrl, "customerIdUrl");
+		checkNotBlank(moveToGroupUrl, "moveToGroupUrl");
+		if (poolMaxObjects < 1 || poolMinIdle < 0 || poolMinIdle > poolMaxObjects) {
+			throw new ConfigurationException("poolMinIdle must be between 0 and poolMaxObjects, which must be positive");
+		}
+		if (maxConnections < 1) {
+			throw new ConfigurationException("maxConnections must be positive");
+		}
+		if (userCacheSize < 0 || userCacheTimeToLive < 0) {
+			throw new ConfigurationException("userCacheSize and userCacheTimeToLive must not be negative");
+		}
+		if (tracingSampleRate < 0 || tracingSampleRate > 1) {
+			throw new ConfigurationException("tracingSampleRate must be between 0 and 1");
+		}
+		if (conditionalGetCacheSize < 0) {
+			throw new ConfigurationException("conditionalGetCacheSize must not be negative");
+		}
+		if (exportParallelism < 1) {
+			throw new ConfigurationException("exportParallelism must be positive");
+		}
+		if (directoryRefreshInterval < 0) {
+			throw new ConfigurationException("directoryRefreshInterval must not be negative");
+		}
+	}
+
+	/**
+	 * Returns the password in clear text, for the ClientLogin request.
+	 */
+	String getClearPassword() {
+		final StringBuilder result = new StringBuilder();
+		password.access(new GuardedString.Accessor() {
+			@Override
+			public void access(char[] clearChars) {
+				result.append(clearChars);
+			}
+		});
+		return result.toString();
+	}
+
+	private static void checkNotBlank(String value, String name) {
+		if (StringUtil.isBlank(value)) {
+			throw new ConfigurationException(name + " must be set");
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
+import org.identityconnectors.framework.spi.Configuration;
+import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.PoolableConnector;
+import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Exposes the users of a Google Apps domain as accounts. A search on the user
+ * name fetches that single user, any other search reads the user feed page by
+ * page and hands every user to the results handler as soon as it is parsed.
+ * Changes are found by comparing the feed with the snapshot of the previous
+ * synchronization, see {@link UserSnapshot}. With a directory snapshot file,
+ * single users are served from a copy on disk that survives restarts and is
+ * refreshed in the background, see {@link DirectoryCache}. Instances are
+ * pooled by the framework, a pooled instance keeps its token and
+ * its HTTP connections.
+ */
+@ConnectorClass(configurationClass = GoogleAppsConfiguration.class, displayNameKey = "connector.display")
+public class GoogleAppsConnector implements PoolableConnector, SearchOp<String>, SyncOp {
+
+	private static final Log LOG = Log.getLog(GoogleAppsConnector.class);
+
+	/**
+	 * The metrics shared by the pooled instances of a configuration, published
+	 * in JMX until the last instance is disposed. Guarded by itself.
+	 */
+	private static final Map<String, SharedMetrics> METRICS = new HashMap<String, SharedMetrics>();
+
+	/**
+	 * The directory snapshots by file, shared by all instances in this JVM.
+	 * Configurations naming the same file must read the same account with the
+	 * same refresh interval, see {@link #getDirectoryCache}.
+	 */
+	private static final ConcurrentMap<String, SharedDirectory> DIRECTORIES =
+	        new ConcurrentHashMap<String, SharedDirectory>();
+
+	private final GoogleAtomReader reader = new GoogleAtomReader();
+
+	private GoogleAppsConfiguration configuration;
+	private GoogleAppsTemplate template;
+	private ParallelUserExporter exporter;
+	private GoogleAppsMetrics metrics;
+
+	@Override
+	public Configuration getConfiguration() {
+		return configuration;
+	}
+
+	@Override
+	public void init(Configuration configuration) {
+		this.configuration = (GoogleAppsConfiguration) configuration;
+		if (this.configuration.isWarmUpXml()) {
+			GoogleXmlContext.warmUpInBackground();
+		}
+		DirectoryCache directory = null;
+		if (!StringUtil.isBlank(this.configuration.getDirectorySnapshotFile())) {
+			directory = getDirectoryCache(this.configuration);
+		}
+		PooledClientHttpRequestFactory requestFactory = new PooledClientHttpRequestFactory();
+		requestFactory.setMaxConnectionsPerRoute(this.configuration.getMaxConnections());
+		requestFactory.setMaxTotalConnections(this.configuration.getMaxConnections());
+		this.template = new GoogleAppsTemplate(this.configuration.getEmail(),
+		        this.configuration.getClearPassword(),
+		        this.configuration.getLoginUrl(),
+		        this.configuration.getBaseUrl(),
+		        this.configuration.getCustomerIdUrl(),
+		        this.configuration.getMoveToGroupUrl(),
+		        requestFactory,
+		        this.configuration.isTracing());
+		metrics = acquireMetrics(this.configuration);
+		template.setMetrics(metrics);
+		template.getCompression().setCompressRequests(this.configuration.isCompressRequests());
+		if (template.getTracing() != null) {
+			template.getTracing().setSampleRate(this.configuration.getTracingSampleRate());
+		}
+		if (this.configuration.getUserCacheSize() > 0 && this.configuration.getUserCacheTimeToLive() > 0) {
+			template.setUserCache(new UserCache(this.configuration.getUserCacheSize(),
+			        this.configuration.getUserCacheTimeToLive()));
+		}
+		if (this.configuration.getConditionalGetCacheSize() > 0) {
+			template.setConditionalGetCache(template.createConditionalGetCache(this.configuration
+			        .getConditionalGetCacheSize()));
+		}
+		if (this.configuration.getExportParallelism() > 1) {
+			exporter = new ParallelUserExporter(template, this.configuration.getExportParallelism());
+		}
+		if (directory != null) {
+			template.setDirectoryCache(directory);
+			refreshDirectoryIfStale();
+		}
+	}
+
+	/**
+	 * An instance is alive while it holds a token that has not expired. An
+	 * instance without one logs in here, so the pool only hands out
+	 * authenticated instances; the token is not checked remotely.
+	 */
+	@Override
+	public void checkAlive() {
+		if (template == null) {
+			throw new ConnectorException("The connector has been disposed");
+		}
+		AuthTokenManager tokenManager = template.getTokenManager();
+		if (!tokenManager.isValid()) {
+			try {
+				tokenManager.getToken();
+			} catch (RestClientException e) {
+				throw new ConnectorException("Unable to authenticate: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	@Override
+	public void dispose() {
+		if (exporter != null) {
+			exporter.shutdown();
+			exporter = null;
+		}
+		if (template != null) {
+			template.destroy();
+			template = null;
+		}
+		if (metrics != null) {
+			releaseMetrics(metrics);
+			metrics = null;
+		}
+	}
+
+	@Override
+	public FilterTranslator<String> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+		checkObjectClass(objectClass);
+		return new GoogleAppsFilterTranslator();
+	}
+
+	@Override
+	public void executeQuery(ObjectClass objectClass, String query, final ResultsHandler handler,
+	        OperationOptions options) {
+		checkObjectClass(objectClass);
+		refreshDirectoryIfStale();
+		final GoogleUserMapper mapper = new GoogleUserMapper(options);
+		try {
+			String token = template.getTokenManager().getToken();
+			if (query != null) {
+				GoogleAtom entry = getUser(token, query);
+				if (entry != null) {
+					ConnectorObject object = mapper.toConnectorObject(entry);
+					if (object != null) {
+						handler.handle(object);
+					}
+				}
+			} else {
+				getAllUser(new GoogleAtomHandler() {
+					@Override
+					public boolean handle(GoogleAtom entry) {
+						ConnectorObject object = mapper.toConnectorObject(entry);
+						if (object == null) {
+							LOG.warn("Skipping entry without a user name: {0}", entry.getId());
+							return true;
+						}
+						return handler.handle(object);
+					}
+				});
+			}
+		} catch (ResourceAccessException e) {
+			throw new ConnectorIOException(e.getMessage(), e);
+		} catch (RestClientException e) {
+			throw new ConnectorException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reports the users created, updated or deleted since the snapshot of the
+	 * given token. Without a token, or with a token that does not match the
+	 * stored snapshot, every user is reported and no deletes are detected. The
+	 * snapshot stored next matches the deltas handed out, also when the handler
+	 * stopped or reading failed; without any delta it keeps its generation, as
+	 * the caller then keeps its token.
+	 */
+	@Override
+	public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		checkObjectClass(objectClass);
+		File file = getSnapshotFile();
+		synchronized (UserSnapshot.lockFor(file)) {
+			UserSnapshot previous = readSnapshot(file);
+			UserSnapshotSync sync = new UserSnapshotSync(previous, token, new GoogleUserMapper(options), handler);
+			if (token != null && !sync.isIncremental()) {
+				LOG.warn("Token {0} does not match snapshot {1}, reporting all users", token.getValue(),
+				        previous.getGeneration());
+			}
+			boolean completed = false;
+			try {
+				getAllUser(sync);
+				if (!sync.isStopped()) {
+					sync.reportDeletions();
+				}
+				completed = true;
+			} catch (ResourceAccessException e) {
+				throw new ConnectorIOException(e.getMessage(), e);
+			} catch (RestClientException e) {
+				throw new ConnectorException(e.getMessage(), e);
+			} finally {
+				if (completed || sync.getDeltaCount() > 0) {
+					writeSnapshot(sync.getSnapshot(), file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole feed into a new snapshot and returns its token, a later
+	 * synchronization reports the changes made from now on.
+	 */
+	@Override
+	public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+		checkObjectClass(objectClass);
+		File file = getSnapshotFile();
+		synchronized (UserSnapshot.lockFor(file)) {
+			UserSnapshot previous = readSnapshot(file);
+			final UserSnapshot next = new UserSnapshot(previous.getGeneration() + 1,
+			        new HashMap<String, Long>(Math.max(16, previous.getHashes().size() * 4 / 3 + 1)));
+			try {
+				getAllUser(new GoogleAtomHandler() {
+					@Override
+					public boolean handle(GoogleAtom entry) {
+						String username = GoogleUserMapper.getUsername(entry);
+						if (username != null) {
+							next.getHashes().put(username, UserSnapshot.hash(entry));
+						}
+						return true;
+					}
+				});
+			} catch (ResourceAccessException e) {
+				throw new ConnectorIOException(e.getMessage(), e);
+			} catch (RestClientException e) {
+				throw new ConnectorException(e.getMessage(), e);
+			}
+			writeSnapshot(next, file);
+			return new SyncToken(next.getGeneration());
+		}
+	}
+
+	/**
+	 * Feeds all users to the handler in feed order, reading ranges of the feed
+	 * concurrently when an export parallelism is configured.
+	 */
+	private void getAllUser(GoogleAtomHandler handler) {
+		if (exporter != null) {
+			exporter.export(handler);
+		} else {
+			template.getAllUser(template.getTokenManager().getToken(), handler);
+		}
+	}
+
+	/**
+	 * Starts reading a new directory snapshot in the background when the
+	 * current one is missing or too old, lookups are served from the current
+	 * one meanwhile.
+	 */
+	private void refreshDirectoryIfStale() {
+		DirectoryCache directory = template.getDirectoryCache();
+		if (directory != null) {
+			directory.refreshIfStale(template.createDirectoryLoader(exporter));
+		}
+	}
+
+	/**
+	 * Returns the directory cache of the snapshot file, created by the first
+	 * configuration naming it.
+	 * 
+	 * @throws ConfigurationException
+	 *             When the file is already used for another account or with
+	 *             another refresh interval.
+	 */
+	private static DirectoryCache getDirectoryCache(GoogleAppsConfiguration configuration) {
+		String path = new File(configuration.getDirectorySnapshotFile()).getAbsolutePath();
+		String source = configuration.getEmail() + " " + configuration.getBaseUrl();
+		SharedDirectory directory = DIRECTORIES.get(path);
+		if (directory == null) {
+			SharedDirectory created = new SharedDirectory(source, new DirectoryCache(new File(path),
+			        configuration.getDirectoryRefreshInterval()));
+			directory = DIRECTORIES.putIfAbsent(path, created);
+			if (directory == null) {
+				directory = created;
+			} else {
+				created.cache.shutdown();
+			}
+		}
+		if (!directory.source.equals(source)) {
+			throw new ConfigurationException("directorySnapshotFile " + path + " is already used for "
+			        + directory.source);
+		}
+		if (directory.cache.getRefreshInterval() != configuration.getDirectoryRefreshInterval()) {
+			throw new ConfigurationException("directorySnapshotFile " + path
+			        + " is already used with directoryRefreshInterval " + directory.cache.getRefreshInterval());
+		}
+		return directory.cache;
+	}
+
+	/**
+	 * Returns the metrics of the configuration, registering their MBeans for
+	 * the first instance using them. Every call must be followed by a call to
+	 * {@link #releaseMetrics}.
+	 */
+	private static GoogleAppsMetrics acquireMetrics(GoogleAppsConfiguration configuration) {
+		String name = configuration.getEmail() + " " + configuration.getBaseUrl();
+		synchronized (METRICS) {
+			SharedMetrics shared = METRICS.get(name);
+			if (shared == null) {
+				shared = new SharedMetrics(new GoogleAppsMetrics(name));
+				try {
+					shared.metrics.registerMBeans();
+				} catch (JMException e) {
+					LOG.warn(e, "Unable to publish the metrics of {0}", name);
+				}
+				METRICS.put(name, shared);
+			}
+			shared.users++;
+			return shared.metrics;
+		}
+	}
+
+	/**
+	 * Stops using the metrics, the last instance using them unregisters their
+	 * MBeans.
+	 */
+	private static void releaseMetrics(GoogleAppsMetrics metrics) {
+		synchronized (METRICS) {
+			SharedMetrics shared = METRICS.get(metrics.getName());
+			if (shared == null || shared.metrics != metrics || --shared.users > 0) {
+				return;
+			}
+			METRICS.remove(metrics.getName());
+			// under the lock, an instance created next registers the same names
+			metrics.stopReporting();
+			metrics.unregisterMBeans();
+		}
+	}
+
+	private File getSnapshotFile() {
+		if (StringUtil.isBlank(configuration.getSnapshotFile())) {
+			throw new ConfigurationException("snapshotFile must be set to synchronize");
+		}
+		return new File(configuration.getSnapshotFile());
+	}
+
+	private static UserSnapshot readSnapshot(File file) {
+		try {
+			return UserSnapshot.read(file);
+		} catch (IOException e) {
+			throw new ConnectorIOException("Unable to read the snapshot " + file, e);
+		}
+	}
+
+	private static void writeSnapshot(UserSnapshot snapshot, File file) {
+		try {
+			snapshot.write(file);
+		} catch (IOException e) {
+			throw new ConnectorIOException("Unable to write the snapshot " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the user, or <code>null</code> when there is no such user.
+	 */
+	private GoogleAtom getUser(String token, String name) {
+		byte[] entry;
+		try {
+			entry = template.getUser(token, name);
+		} catch (HttpClientErrorException e) {
+			if (isUnknownUser(e)) {
+				return null;
+			}
+			throw e;
+		}
+		if (entry == null) {
+			return null;
+		}
+		try {
+			return reader.read(new ByteArrayInputStream(entry), null);
+		} catch (IOException e) {
+			throw new ConnectorIOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Google answers a request for an unknown user with a 404, or with a 400
+	 * carrying the EntityDoesNotExist error code.
+	 */
+	private static boolean isUnknownUser(HttpClientErrorException e) {
+		if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+			return true;
+		}
+		String body = e.getResponseBodyAsString();
+		return e.getStatusCode() == HttpStatus.BAD_REQUEST && body != null && body.contains("EntityDoesNotExist");
+	}
+
+	private static void checkObjectClass(ObjectClass objectClass) {
+		if (!ObjectClass.ACCOUNT.equals(objectClass)) {
+			throw new IllegalArgumentException("Unsupported object class: " + objectClass);
+		}
+	}
+
+	/**
+	 * Metrics with the number of instances using them, guarded by
+	 * {@link #METRICS}.
+	 */
+	private static class SharedMetrics {
+
+		private final GoogleAppsMetrics metrics;
+		private int users;
+
+		SharedMetrics(GoogleAppsMetrics metrics) {
+			this.metrics = metrics;
+		}
+	}
+
+	/**
+	 * A directory cache with the account whose users it keeps.
+	 */
+	private static class SharedDirectory {
+
+		private final String source;
+		private final DirectoryCache cache;
+
+		SharedDirectory(String source, DirectoryCache cache) {
+			this.source = source;
+			this.cache = cache;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+
+/**
+ * Translates an equality filter on the user name into the name of the single
+ * user to fetch. Any other filter is left to the framework, which then
+ * filters the results of a full scan.
+ */
+public class GoogleAppsFilterTranslator extends AbstractFilterTranslator<String> {
+
+	@Override
+	protected String createEqualsExpression(EqualsFilter filter, boolean not) {
+		if (not) {
+			return null;
+		}
+		Attribute attribute = filter.getAttribute();
+		if (!Name.NAME.equals(attribute.getName()) && !Uid.NAME.equals(attribute.getName())) {
+			return null;
+		}
+		List<Object> values = attribute.getValue();
+		if (values == null || values.size() != 1 || values.get(0) == null) {
+			return null;
+		}
+		return values.get(0).toString();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The metrics of all operations of a template, published as one MXBean per
+ * operation and pushed to the registered {@link MetricsReporter}s.
+ */
+public class GoogleAppsMetrics {
+
+	public static final String JMX_DOMAIN = "nl.iwelcome.connector.google";
+
+	private static final Log LOG = LogFactory.getLog(GoogleAppsMetrics.class);
+
+	private final String name;
+	private final Map<GoogleOperation, OperationMetrics> operations =
+	        new EnumMap<GoogleOperation, OperationMetrics>(GoogleOperation.class);
+	private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<MetricsReporter>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param name
+	 *            Identifies the metrics in JMX and in reports.
+	 */
+	public GoogleAppsMetrics(String name) {
+		this.name = name;
+		for (GoogleOperation operation : GoogleOperation.values()) {
+			operations.put(operation, new OperationMetrics(operation));
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public OperationMetrics get(GoogleOperation operation) {
+		return operations.get(operation);
+	}
+
+	public Collection<OperationMetrics> getAll() {
+		return Collections.unmodifiableCollection(operations.values());
+	}
+
+	public void addReporter(MetricsReporter reporter) {
+		reporters.add(reporter);
+	}
+
+	public void removeReporter(MetricsReporter reporter) {
+		reporters.remove(reporter);
+	}
+
+	/**
+	 * Hands the current metrics to all reporters.
+	 */
+	public void report() {
+		for (MetricsReporter reporter : reporters) {
+			try {
+				reporter.report(name, getAll());
+			} catch (RuntimeException e) {
+				LOG.warn("Reporter " + reporter + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Reports the metrics with a fixed period on a background thread, until
+	 * {@link #stopReporting()} is called.
+	 */
+	public synchronized void startReporting(long period, TimeUnit unit) {
+		stopReporting();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("google-apps-metrics"));
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, period, period, unit);
+	}
+
+	public synchronized void stopReporting() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Registers an MXBean per operation with the platform MBean server, named
+	 * <code>nl.iwelcome.connector.google:type=GoogleApps,name=...,operation=...</code>.
+	 */
+	public synchronized void registerMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (OperationMetrics metrics : operations.values()) {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=GoogleApps,name=" + ObjectName.quote(name)
+			        + ",operation=" + metrics.getOperation());
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(metrics, objectName);
+				registered.add(objectName);
+			}
+		}
+	}
+
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				LOG.debug("Unable to unregister " + objectName, e);
+			}
+		}
+		registered.clear();
+	}
+}
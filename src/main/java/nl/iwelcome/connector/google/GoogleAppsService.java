@@ -16,31 +16,68 @@
  */
 package nl.iwelcome.connector.google;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-
-import javax.xml.transform.Source;
-import javax.xml.transform.stream.StreamSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
+import nl.iwelcome.connector.google.DomainMetadataCache.DomainMetadata;
 import nl.iwelcome.connector.google.domain.GoogleAtom;
 import nl.iwelcome.connector.google.domain.GoogleConstants;
 import nl.iwelcome.connector.google.domain.GoogleProperty;
 
-import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
 
 public class GoogleAppsService {
 
+	/**
+	 * The number of users sent in a single usersToMove message by default.
+	 */
+	public static final int DEFAULT_MAX_USERS_PER_MOVE = 100;
+
 	private GoogleAppsTemplate googleAppsTemplate;
 
-	private Jaxb2Marshaller marshaller;
+	private final DomainMetadataCache domainMetadata;
+
+	private final OrgUnitTree orgUnits;
+
+	private volatile boolean validateOrgUnits = true;
+
+	private int maxUsersPerMove = DEFAULT_MAX_USERS_PER_MOVE;
 
 	public GoogleAppsService(String email, String password, String loginUrl, String baseUrl, String customerIdUrl,
 	        String moveToGroupUrl) {
-		this.googleAppsTemplate = new GoogleAppsTemplate(email, password, loginUrl, baseUrl, customerIdUrl,
-		        moveToGroupUrl);
-		this.marshaller = new Jaxb2Marshaller();
-		marshaller.setClassesToBeBound(GoogleAtom.class, GoogleAtom.class);
+		this(new GoogleAppsTemplate(email, password, loginUrl, baseUrl, customerIdUrl, moveToGroupUrl));
+	}
+
+	public GoogleAppsService(GoogleAppsTemplate googleAppsTemplate) {
+		this(googleAppsTemplate, DomainMetadataCache.DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param googleAppsTemplate
+	 *            The template used for the remote calls.
+	 * @param metadataTimeToLive
+	 *            The time in milliseconds the customer record is cached.
+	 */
+	public GoogleAppsService(GoogleAppsTemplate googleAppsTemplate, long metadataTimeToLive) {
+		this.googleAppsTemplate = googleAppsTemplate;
+		this.domainMetadata = new DomainMetadataCache(new DomainMetadataCache.Loader() {
+			@Override
+			public DomainMetadata load() {
+				// the requests authenticate themselves, only the customer is needed
+				return new DomainMetadata(GoogleAppsService.this.googleAppsTemplate.getCustomer(null));
+			}
+		}, metadataTimeToLive);
+		this.orgUnits = new OrgUnitTree(new OrgUnitTree.Loader() {
+			@Override
+			public Collection<String> load() {
+				return loadOrgUnitPaths();
+			}
+		});
 	}
 
 	/**
@@ -53,19 +90,150 @@ public class GoogleAppsService {
 	 *  	<apps:property name="blockInheritance" value="true or false" />
 	 *  	<apps:property name="usersToMove" value="liz@example.com, namrata@example.com, jake@example.com" />
 	 * </atom:entry>
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the organization unit does not exist.
 	 */
 	public boolean moveUserToOrgUnit(String user, String orgUnit) {
-		GoogleAtom customerIdResponse = getCustomerId();
-		GoogleAtom moveToOrgUnitRequest = getMoveToOrgUnitRequest(user, orgUnit, customerIdResponse.getId());
+		return moveToOrgUnit(user, resolveOrgUnit(orgUnit));
+	}
+
+	/**
+	 * Moves all given users to the organization unit, sending at most
+	 * {@link #getMaxUsersPerMove()} users in a single usersToMove message.
+	 * 
+	 * @return <code>true</code> if every message was accepted.
+	 * @throws IllegalArgumentException
+	 *             If the organization unit does not exist.
+	 */
+	public boolean moveUsersToOrgUnit(Collection<String> users, String orgUnit) {
+		String resolved = resolveOrgUnit(orgUnit);
+		boolean result = true;
+		Iterator<String> iterator = users.iterator();
+		List<String> batch = new ArrayList<String>(Math.min(users.size(), maxUsersPerMove));
+		while (iterator.hasNext()) {
+			batch.add(iterator.next());
+			if (batch.size() == maxUsersPerMove || !iterator.hasNext()) {
+				result &= moveToOrgUnit(joinUsers(batch), resolved);
+				batch.clear();
+			}
+		}
+		return result;
+	}
 
-		byte[] resultBytes = googleAppsTemplate.moveUserToGroup(customerIdResponse.getId(),
-		        customerIdResponse.getCustomerId(),
-		        orgUnit,
-		        moveToOrgUnitRequest);
+	public int getMaxUsersPerMove() {
+		return maxUsersPerMove;
+	}
+
+	public void setMaxUsersPerMove(int maxUsersPerMove) {
+		if (maxUsersPerMove < 1) {
+			throw new IllegalArgumentException("maxUsersPerMove must be at least 1");
+		}
+		this.maxUsersPerMove = maxUsersPerMove;
+	}
+
+	/**
+	 * Returns the organization units of the customer, loaded on first use.
+	 */
+	public OrgUnitTree getOrgUnitTree() {
+		return orgUnits;
+	}
+
+	public boolean isValidateOrgUnits() {
+		return validateOrgUnits;
+	}
+
+	/**
+	 * Sets if moves are checked against the {@link #getOrgUnitTree()
+	 * organization units} before they are sent, <code>true</code> by default.
+	 * Without the check the path is only normalized.
+	 */
+	public void setValidateOrgUnits(boolean validateOrgUnits) {
+		this.validateOrgUnits = validateOrgUnits;
+	}
+
+	/**
+	 * Returns the path of the organization unit as Google spells it.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the organization unit does not exist.
+	 */
+	private String resolveOrgUnit(String orgUnit) {
+		if (!validateOrgUnits) {
+			return OrgUnitTree.normalize(orgUnit);
+		}
+		String resolved = orgUnits.resolve(orgUnit);
+		if (resolved == null) {
+			throw new IllegalArgumentException("Unknown organization unit: " + orgUnit);
+		}
+		return resolved;
+	}
+
+	private Collection<String> loadOrgUnitPaths() {
+		String customerId = domainMetadata.get().getCustomer().getCustomerId();
+		List<String> paths = new ArrayList<String>();
+		GoogleAtomFeedIterator iterator = googleAppsTemplate.iterateOrgUnits(customerId);
+		while (iterator.hasNext()) {
+			GoogleProperty[] properties = iterator.next().getProperties();
+			if (properties == null) {
+				continue;
+			}
+			for (GoogleProperty property : properties) {
+				if (GoogleConstants.ORG_UNIT_PATH_MESSAGE_FIELD.equals(property.getName())
+				        && property.getValue() != null) {
+					paths.add(property.getValue());
+				}
+			}
+		}
+		return paths;
+	}
+
+	private boolean moveToOrgUnit(String usersToMove, String orgUnit) {
+		GoogleAtom customerIdResponse = domainMetadata.get().getCustomer();
+		GoogleAtom moveToOrgUnitRequest = getMoveToOrgUnitRequest(usersToMove, orgUnit,
+		        customerIdResponse.getId());
+
+		byte[] resultBytes;
+		try {
+			resultBytes = googleAppsTemplate.moveUserToGroup(customerIdResponse.getId(),
+			        customerIdResponse.getCustomerId(),
+			        orgUnit,
+			        moveToOrgUnitRequest);
+		} catch (HttpClientErrorException e) {
+			// only errors showing the cached metadata is stale, not those about a user
+			HttpStatus status = e.getStatusCode();
+			if (status == HttpStatus.UNAUTHORIZED || status == HttpStatus.FORBIDDEN
+			        || status == HttpStatus.NOT_FOUND) {
+				domainMetadata.invalidate();
+			}
+			if (status == HttpStatus.NOT_FOUND) {
+				orgUnits.invalidate();
+			}
+			throw e;
+		}
 		return resultBytes != null;
 	}
 
-	private GoogleAtom getMoveToOrgUnitRequest(String user, String orgUnit, String customerId) {
+	/**
+	 * Drops the cached customer record, it is fetched again on the next call
+	 * that needs it.
+	 */
+	public void invalidateDomainMetadata() {
+		domainMetadata.invalidate();
+	}
+
+	private static String joinUsers(List<String> users) {
+		StringBuilder builder = new StringBuilder();
+		for (String user : users) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(user);
+		}
+		return builder.toString();
+	}
+
+	private GoogleAtom getMoveToOrgUnitRequest(String usersToMove, String orgUnit, String customerId) {
 		GoogleAtom moveToOrgUnitRequest = new GoogleAtom();
 		GoogleProperty[] properties = new GoogleProperty[3];
 		GoogleProperty customerIdGoogleProperty = new GoogleProperty(GoogleConstants.CUSTOMER_ID_MESSAGE_FIELD,
@@ -73,20 +241,10 @@ public class GoogleAppsService {
 		properties[0] = customerIdGoogleProperty;
 		GoogleProperty nameGoogleProperty = new GoogleProperty(GoogleConstants.NAME_MESSAGE_FIELD, orgUnit);
 		properties[1] = nameGoogleProperty;
-		GoogleProperty usersToMoveGoogleProperty = new GoogleProperty(GoogleConstants.USERS_TO_MOVE_MESSAGE_FIELD, user);
+		GoogleProperty usersToMoveGoogleProperty = new GoogleProperty(GoogleConstants.USERS_TO_MOVE_MESSAGE_FIELD,
+		        usersToMove);
 		properties[2] = usersToMoveGoogleProperty;
 		moveToOrgUnitRequest.setProperties(properties);
 		return moveToOrgUnitRequest;
 	}
-
-	private GoogleAtom getCustomerId() {
-		String token = googleAppsTemplate.getToken();
-		byte[] bytes = googleAppsTemplate.getCustomerId(token);
-
-		Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes));
-
-		Source source = new StreamSource(reader);
-		GoogleAtom googleAtom = (GoogleAtom) marshaller.unmarshal(source);
-		return googleAtom;
-	}
 }
@@ -16,20 +16,39 @@
  */
 package nl.iwelcome.connector.google;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.http.converter.ByteArrayHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
@@ -44,6 +63,8 @@ import org.springframework.web.client.RestTemplate;
  */
 public class GoogleAppsTemplate implements GoogleAppsOperations {
 
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
 	private final String email;
 	private final String password;
 	private final RestTemplate restTemplate;
@@ -51,8 +72,47 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 	private final String baseUrl;
 	private final String customerIdUrl;
 	private final String moveToGroupUrl;
+	private final ClientHttpRequestFactory requestFactory;
+
+	// the token of the GET methods was never part of the URL, it is not bound
+	private final PreparedRequest<String> getTokenRequest;
+	private final PreparedRequest<byte[]> getUserRequest;
+	private final PreparedRequest<byte[]> getAllUserRequest;
+	private final PreparedRequest<byte[]> getUsersFromRequest;
+	private final PreparedRequest<byte[]> getCustomerIdRequest;
+	private final PreparedRequest<GoogleAtom> getCustomerRequest;
+	private final PreparedRequest<byte[]> moveUserToGroupRequest;
+	private final PreparedRequest<byte[]> getOrgUnitsRequest;
+
+	private final AuthTokenManager tokenManager;
+	private final CompressingClientHttpRequestFactory compression;
+	private final TracingClientHttpRequestFactory tracing;
+	private volatile GoogleAppsMetrics metrics = new GoogleAppsMetrics("template-" + INSTANCES.incrementAndGet());
+
+	private volatile RequestLimiter requestLimiter;
+	private volatile RetryPolicy retryPolicy;
+	private volatile CircuitBreaker circuitBreaker;
+	private volatile UserCache userCache;
+	private volatile ConditionalGetCache conditionalGetCache;
+	private volatile DirectoryCache directoryCache;
 
-	private final AtomicReference<String> auth = new AtomicReference<String>();
+	private final SingleFlight<String, Object> inFlightGets = new SingleFlight<String, Object>() {
+		@Override
+		protected Object share(Object value) {
+			return Representations.copy(value);
+		}
+	};
+	// incremented before the caches drop moved users, see fetchUser
+	private final AtomicLong userGeneration = new AtomicLong();
+	private final Map<GoogleOperation, RetryPolicy> retryPolicies =
+	        new ConcurrentHashMap<GoogleOperation, RetryPolicy>();
+
+	private final GoogleAtomFeedParser feedParser = new GoogleAtomFeedParser();
+	private final GoogleAtomReader atomReader = new GoogleAtomReader();
+	private final GoogleAtomWriter atomWriter = new GoogleAtomWriter();
+	private final RequestCallback atomAcceptCallback = new AtomAcceptCallback();
+	private final ResponseExtractor<GoogleAtomFeedPage> feedPageExtractor = new FeedPageExtractor();
+	private final ExecutorService feedExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("google-feed"));
 
 	/**
 	 * Constructs a new instance.
@@ -66,16 +126,49 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 	 */
 	public GoogleAppsTemplate(String email, String password, String loginUrl, String baseUrl, String customerIdUrl,
 	        String moveToGroupUrl, boolean tracing) {
+		this(email, password, loginUrl, baseUrl, customerIdUrl, moveToGroupUrl, new SimpleClientHttpRequestFactory(),
+		        tracing);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param email
+	 *            The login the account to manage.
+	 * @param password
+	 *            The password.
+	 * @param requestFactory
+	 *            The factory creating the HTTP requests, typically a
+	 *            {@link PooledClientHttpRequestFactory}.
+	 * @param tracing
+	 *            A boolean indicating if tracing should be enabled.
+	 */
+	public GoogleAppsTemplate(String email, String password, String loginUrl, String baseUrl, String customerIdUrl,
+	        String moveToGroupUrl, ClientHttpRequestFactory requestFactory, boolean tracing) {
 		this.loginUrl = loginUrl;
 		this.baseUrl = baseUrl;
 		this.customerIdUrl = customerIdUrl;
 		this.moveToGroupUrl = moveToGroupUrl;
 		this.password = password;
 		this.email = email;
+		this.requestFactory = requestFactory;
+		this.tokenManager = new AuthTokenManager(new AuthTokenManager.Authenticator() {
+			@Override
+			public String authenticate() {
+				return GoogleAppsTemplate.this.authenticate();
+			}
+		});
 		restTemplate = new AuthenticatingRestTemplate();
+		// metered below the compression, to count the bytes on the wire
+		compression = new CompressingClientHttpRequestFactory(new MeteringClientHttpRequestFactory(requestFactory));
+		restTemplate.setRequestFactory(compression);
 
-		List<HttpMessageConverter<?>> converters = new ArrayList<HttpMessageConverter<?>>(
-		        restTemplate.getMessageConverters());
+		List<HttpMessageConverter<?>> converters = new ArrayList<HttpMessageConverter<?>>();
+		// entries are read and written with StAX, ahead of the JAXB converter
+		// that is left for the other bound classes such as GoogleProperty
+		converters.add(new GoogleAtomHttpMessageConverter());
+		converters.add(new MyJaxb2Converter());
+		converters.addAll(restTemplate.getMessageConverters());
 		converters.add(new PropertiesHttpMessageConverter());
 		converters.add(new XmlMessageConverter());
 		converters.add(new StringHttpMessageConverter());
@@ -83,8 +176,26 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 		restTemplate.setMessageConverters(converters);
 
 		if (tracing) {
-			restTemplate.setRequestFactory(new TracingClientHttpRequestFactory(restTemplate.getRequestFactory()));
+			this.tracing = new TracingClientHttpRequestFactory(compression);
+			restTemplate.setRequestFactory(this.tracing);
+		} else {
+			this.tracing = null;
 		}
+
+		getTokenRequest = RestInvoker.prepareGetTo(baseUrl).expecting(String.class).prepare();
+		getUserRequest = RestInvoker.prepareGetTo(baseUrl + "{name}").expecting(byte[].class).prepare();
+		getAllUserRequest = RestInvoker.prepareGetTo(baseUrl).expecting(byte[].class).prepare();
+		getUsersFromRequest = RestInvoker.prepareGetTo(baseUrl + "?startUsername={startUsername}")
+		        .expecting(byte[].class)
+		        .prepare();
+		getCustomerIdRequest = RestInvoker.prepareGetTo(customerIdUrl).expecting(byte[].class).prepare();
+		getCustomerRequest = RestInvoker.prepareGetTo(customerIdUrl).expecting(GoogleAtom.class).prepare();
+		moveUserToGroupRequest = RestInvoker.preparePutTo(moveToGroupUrl + "{customerId}/{orgUnit}")
+		        .expecting(byte[].class)
+		        .prepare();
+		getOrgUnitsRequest = RestInvoker.prepareGetTo(moveToGroupUrl + "{customerId}?get=all")
+		        .expecting(byte[].class)
+		        .prepare();
 	}
 
 	/**
@@ -100,31 +211,392 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 		this(email, password, loginUrl, baseUrl, customerIdUrl, moveToGroupUrl, false);
 	}
 
+	/**
+	 * Executes the callback with a valid token. When Google rejects the token,
+	 * a new one is obtained and the callback is executed once more.
+	 */
 	@Override
 	public <T> T doWithCallback(ReaderCallback<T> callback) {
-		if (auth.get() == null) {
-			updateAuth();
+		return doWithCallback(GoogleOperation.CALLBACK, callback);
+	}
+
+	/**
+	 * Executes the callback as the given operation. The circuit breaker, the
+	 * request limiter and the retry policy apply when they are set.
+	 */
+	public <T> T doWithCallback(GoogleOperation operation, ReaderCallback<T> callback) {
+		OperationMetrics operationMetrics = metrics.get(operation);
+		OperationMetrics previous = operationMetrics.enter();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = doWithRetries(operation, callback);
+			failed = false;
+			return result;
+		} finally {
+			operationMetrics.exit(previous, System.nanoTime() - start, failed);
+		}
+	}
+
+	private <T> T doWithRetries(GoogleOperation operation, ReaderCallback<T> callback) {
+		RetryPolicy retryPolicy = getRetryPolicy(operation);
+		int attempt = 1;
+		while (true) {
+			try {
+				return doGuarded(operation, callback);
+			} catch (RuntimeException e) {
+				if (retryPolicy == null || !retryPolicy.shouldRetry(e, attempt)) {
+					throw e;
+				}
+				sleep(retryPolicy.getBackoff(attempt), e);
+				attempt++;
+			}
+		}
+	}
+
+	private static void sleep(long millis, RuntimeException failure) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw failure;
+		}
+	}
+
+	private <T> T doGuarded(GoogleOperation operation, ReaderCallback<T> callback) {
+		CircuitBreaker breaker = circuitBreaker;
+		if (breaker == null) {
+			return doLimited(operation, callback);
+		}
+		boolean trial = breaker.acquirePermission();
+		boolean reported = false;
+		try {
+			T result = doLimited(operation, callback);
+			reported = true;
+			breaker.onSuccess(trial);
+			return result;
+		} catch (RuntimeException e) {
+			reported = true;
+			breaker.onFailure(e, trial);
+			throw e;
+		} finally {
+			if (!reported) {
+				breaker.release(trial);
+			}
 		}
-		return callback.execute(restTemplate);
+	}
+
+	private <T> T doLimited(GoogleOperation operation, ReaderCallback<T> callback) {
+		RequestLimiter limiter = requestLimiter;
+		if (limiter == null) {
+			return doAuthenticated(callback);
+		}
+		long ticket = limiter.acquire(operation);
+		RuntimeException failure = null;
+		try {
+			return doAuthenticated(callback);
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			limiter.release(operation, ticket, failure);
+		}
+	}
+
+	private <T> T doAuthenticated(ReaderCallback<T> callback) {
+		String token = tokenManager.getToken();
+		try {
+			return callback.execute(restTemplate);
+		} catch (HttpClientErrorException e) {
+			if (e.getStatusCode() != HttpStatus.UNAUTHORIZED) {
+				throw e;
+			}
+			OperationMetrics operationMetrics = OperationMetrics.current();
+			if (operationMetrics != null) {
+				operationMetrics.recordAuthRefresh();
+			}
+			tokenManager.renew(token);
+			return callback.execute(restTemplate);
+		}
+	}
+
+	/**
+	 * Sets the limiter keeping the calls within the quota, <code>null</code>
+	 * for no limits. Meant to be called before the template is used.
+	 */
+	public void setRequestLimiter(RequestLimiter requestLimiter) {
+		this.requestLimiter = requestLimiter;
+	}
+
+	public RequestLimiter getRequestLimiter() {
+		return requestLimiter;
+	}
+
+	/**
+	 * Sets the retry policy of all idempotent operations, <code>null</code>
+	 * for no retries. Meant to be called before the template is used.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the retry policy of a single operation, overriding the policy of
+	 * all idempotent operations. Setting a policy for an operation that is not
+	 * idempotent states that retrying it is safe.
+	 */
+	public void setRetryPolicy(GoogleOperation operation, RetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			retryPolicies.remove(operation);
+		} else {
+			retryPolicies.put(operation, retryPolicy);
+		}
+	}
+
+	/**
+	 * Returns the retry policy applied to an operation, or <code>null</code>.
+	 */
+	public RetryPolicy getRetryPolicy(GoogleOperation operation) {
+		RetryPolicy policy = retryPolicies.get(operation);
+		if (policy == null && operation.isIdempotent()) {
+			policy = retryPolicy;
+		}
+		return policy;
+	}
+
+	/**
+	 * Sets the cache in front of {@link #getUser(String, String)},
+	 * <code>null</code> for none. Users moved with
+	 * {@link #moveUserToGroup(String, String, String, GoogleAtom)} are dropped
+	 * from it. Meant to be called before the template is used.
+	 */
+	public void setUserCache(UserCache userCache) {
+		this.userCache = userCache;
+	}
+
+	public UserCache getUserCache() {
+		return userCache;
+	}
+
+	/**
+	 * Sets the snapshot of the directory serving {@link #getUser(String, String)}
+	 * and the customer record after the user cache, <code>null</code> for
+	 * none. Users moved with
+	 * {@link #moveUserToGroup(String, String, String, GoogleAtom)} are
+	 * invalidated in it. Meant to be called before the template is used.
+	 */
+	public void setDirectoryCache(DirectoryCache directoryCache) {
+		this.directoryCache = directoryCache;
+	}
+
+	public DirectoryCache getDirectoryCache() {
+		return directoryCache;
+	}
+
+	/**
+	 * Returns a loader reading the customer record and all users from Google
+	 * into a {@link DirectorySnapshot}, bypassing the directory cache.
+	 * 
+	 * @param exporter
+	 *            The exporter reading the users, <code>null</code> to read the
+	 *            feed page by page.
+	 */
+	public DirectoryCache.Loader createDirectoryLoader(final ParallelUserExporter exporter) {
+		return new DirectoryCache.Loader() {
+			@Override
+			public void load(final DirectorySnapshot.Writer writer) throws IOException {
+				writer.setCustomer(fetchCustomerId());
+				final IOException[] failure = new IOException[1];
+				final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+				GoogleAtomHandler handler = new GoogleAtomHandler() {
+					@Override
+					public boolean handle(GoogleAtom entry) {
+						String username = GoogleUserMapper.getUsername(entry);
+						if (username == null) {
+							return true;
+						}
+						try {
+							buffer.reset();
+							atomWriter.write(entry, buffer, "UTF-8");
+							writer.add(username, buffer.toByteArray());
+							return true;
+						} catch (IOException e) {
+							failure[0] = e;
+							return false;
+						}
+					}
+				};
+				if (exporter != null) {
+					exporter.export(handler);
+				} else {
+					iterateAllUser(null).handleRemaining(handler);
+				}
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sets the cache keeping the ETag and representation of the users and the
+	 * customer record, <code>null</code> for none. Feeds are not revalidated.
+	 * Meant to be called before the template is used.
+	 */
+	public void setConditionalGetCache(ConditionalGetCache conditionalGetCache) {
+		this.conditionalGetCache = conditionalGetCache;
+	}
+
+	/**
+	 * Creates a conditional GET cache reading responses with the converters of
+	 * this template.
+	 */
+	public ConditionalGetCache createConditionalGetCache(int maxSize) {
+		return new ConditionalGetCache(maxSize, restTemplate.getMessageConverters());
+	}
+
+	public ConditionalGetCache getConditionalGetCache() {
+		return conditionalGetCache;
+	}
+
+	/**
+	 * Sets the breaker that stops calling Google while it is unhealthy,
+	 * <code>null</code> for none. Meant to be called before the template is
+	 * used.
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Executes a GET as the given operation, sharing the outcome with the
+	 * concurrent calls of the same operation on the same URI. Callers joining
+	 * a call receive their own copy of a byte array or an entry.
+	 */
+	private <T> T doCoalesced(final GoogleOperation operation, Class<T> type, URI uri,
+	        final ReaderCallback<T> callback) {
+		return doCoalesced(operation, type, uri.toString(), callback);
+	}
+
+	private <T> T doCoalesced(final GoogleOperation operation, Class<T> type, String resource,
+	        final ReaderCallback<T> callback) {
+		String key = operation.name() + ' ' + type.getName() + ' ' + resource;
+		return type.cast(inFlightGets.execute(key, new Callable<Object>() {
+			@Override
+			public Object call() {
+				return doWithCallback(operation, callback);
+			}
+		}));
+	}
+
+	/**
+	 * Executes a prepared GET, conditionally when a conditional GET cache is
+	 * set.
+	 */
+	private <T> T get(RestOperations operations, PreparedRequest<T> request, Object... uriVariables) {
+		ConditionalGetCache cache = conditionalGetCache;
+		if (cache == null) {
+			return request.execute(operations, uriVariables);
+		}
+		return cache.get(operations, request.expand(uriVariables), request.getType());
+	}
+
+	/**
+	 * Returns the number of GET calls that shared the exchange of an identical
+	 * call already in flight.
+	 */
+	public long getCoalescedCount() {
+		return inFlightGets.getSharedCount();
+	}
+
+	/**
+	 * Returns the factory negotiating compressed transfers, to change its
+	 * User-Agent or to compress request bodies.
+	 */
+	public CompressingClientHttpRequestFactory getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns the factory tracing the requests, to change its sampling, or
+	 * <code>null</code> when tracing is disabled.
+	 */
+	public TracingClientHttpRequestFactory getTracing() {
+		return tracing;
+	}
+
+	/**
+	 * Returns the latency, status and traffic metrics of the operations of
+	 * this template.
+	 */
+	public GoogleAppsMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Records the operations of this template in the given metrics, for
+	 * instance to share them between templates. Meant to be called before the
+	 * template is used.
+	 */
+	public void setMetrics(GoogleAppsMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the manager of the authentication token of this template.
+	 */
+	public AuthTokenManager getTokenManager() {
+		return tokenManager;
 	}
 
 	@Override
 	public String getToken() {
-		return doWithCallback(new ReaderCallback<String>() {
+		return doCoalesced(GoogleOperation.GET_TOKEN, String.class, getTokenRequest.expand(),
+		        new ReaderCallback<String>() {
 			@Override
 			public String execute(RestOperations operations) {
-				return operations.getForObject(baseUrl, String.class);
+				return getTokenRequest.execute(operations);
 			}
 		});
 	}
 
-	private void updateAuth() {
-		String current = auth.get();
-		String replacement = authenticate();
-		auth.compareAndSet(current, replacement);
+	/**
+	 * Releases the background threads and, when it supports it, the request
+	 * factory given at construction.
+	 */
+	public void destroy() {
+		feedExecutor.shutdown();
+		if (tracing != null) {
+			tracing.destroy();
+		}
+		if (requestFactory instanceof DisposableBean) {
+			try {
+				((DisposableBean) requestFactory).destroy();
+			} catch (Exception e) {
+				throw new IllegalStateException("Unable to release the request factory", e);
+			}
+		}
 	}
 
 	private String authenticate() {
+		OperationMetrics operationMetrics = metrics.get(GoogleOperation.AUTHENTICATE);
+		OperationMetrics previous = operationMetrics.enter();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			String token = login();
+			failed = false;
+			return token;
+		} finally {
+			operationMetrics.exit(previous, System.nanoTime() - start, failed);
+		}
+	}
+
+	private String login() {
 		Properties result = RestInvoker.preparePostTo(loginUrl)
 		        .using(restTemplate)
 		        .expecting(Properties.class)
@@ -143,7 +615,7 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 			return super.doExecute(url, method, new RequestCallback() {
 				@Override
 				public void doWithRequest(ClientHttpRequest request) throws IOException {
-					String auth = GoogleAppsTemplate.this.auth.get();
+					String auth = tokenManager.peek();
 					if (auth != null) {
 						request.getHeaders().set("Authorization", "GoogleLogin auth=" + auth);
 					}
@@ -153,69 +625,212 @@ public class GoogleAppsTemplate implements GoogleAppsOperations {
 		}
 	}
 
+	/**
+	 * Returns the entry of a user, from the user cache or the directory
+	 * snapshot when they are set.
+	 */
 	public byte[] getUser(final String token, final String name) {
-		return doWithCallback(new ReaderCallback<byte[]>() {
+		UserCache cache = userCache;
+		if (cache == null) {
+			return fetchOrReadUser(name);
+		}
+		byte[] result = cache.get(name);
+		if (result == null) {
+			long stamp = cache.getStamp();
+			result = fetchOrReadUser(name);
+			cache.put(name, result, stamp);
+		}
+		return result;
+	}
+
+	private byte[] fetchOrReadUser(String name) {
+		DirectoryCache directory = directoryCache;
+		byte[] result = directory == null ? null : directory.getUser(name);
+		return result != null ? result : fetchUser(name);
+	}
+
+	private byte[] fetchUser(final String name) {
+		// read after the cache stamp; a caller only joins a read started after
+		// the last move it may have observed, so the result it caches is current
+		String resource = getUserRequest.expand(name) + "#" + userGeneration.get();
+		return doCoalesced(GoogleOperation.GET_USER, byte[].class, resource, new ReaderCallback<byte[]>() {
 			@Override
 			public byte[] execute(RestOperations operations) {
-				byte[] result = RestInvoker
-				                .prepareGetTo(baseUrl + name)
-				                .using(operations)
-				                .expecting(byte[].class)
-				                .withParam("T", token)
-				                .execute();
-				return result;
+				return get(operations, getUserRequest, name);
 			}
 		});
 	}
 
 	public byte[] getAllUser(final String token) {
-		return doWithCallback(new ReaderCallback<byte[]>() {
+		return doCoalesced(GoogleOperation.GET_ALL_USER, byte[].class, getAllUserRequest.expand(),
+		        new ReaderCallback<byte[]>() {
 			@Override
 			public byte[] execute(RestOperations operations) {
-				byte[] result = RestInvoker
-				        .prepareGetTo(baseUrl)
-				        .using(operations)
-				        .expecting(byte[].class)
-				        .withParam("T", token)
-				        .execute();
-				return result;
+				// not kept by the conditional GET cache, see its class comment
+				return getAllUserRequest.execute(operations);
+			}
+		});
+	}
+
+	/**
+	 * Returns an iterator over all users, reading the feed page by page. The
+	 * first page is fetched before this method returns.
+	 */
+	public GoogleAtomFeedIterator iterateAllUser(final String token) {
+		GoogleAtomFeedPage firstPage = getFeedPage(GoogleOperation.GET_ALL_USER, getAllUserRequest.expand());
+		return new GoogleAtomFeedIterator(new GoogleAtomFeedIterator.PageFetcher() {
+			@Override
+			public GoogleAtomFeedPage fetch(String url) {
+				return getFeedPage(url);
+			}
+		}, feedExecutor, firstPage);
+	}
+
+	/**
+	 * Pushes all users to the handler, reading the feed page by page.
+	 */
+	public void getAllUser(String token, GoogleAtomHandler handler) {
+		iterateAllUser(token).handleRemaining(handler);
+	}
+
+	/**
+	 * Fetches the page of the user feed starting at the given user name, the
+	 * first page for an empty name.
+	 */
+	public GoogleAtomFeedPage getUserPage(String startUsername) {
+		URI uri = startUsername.length() == 0 ? getAllUserRequest.expand() : getUsersFromRequest
+		        .expand(startUsername);
+		return getFeedPage(GoogleOperation.GET_ALL_USER, uri);
+	}
+
+	/**
+	 * Fetches a single page of a feed, typically the <code>next</code> link of
+	 * a previous page.
+	 */
+	public GoogleAtomFeedPage getFeedPage(String url) {
+		// links in a feed are already encoded
+		return getFeedPage(GoogleOperation.GET_FEED_PAGE, URI.create(url));
+	}
+
+	private GoogleAtomFeedPage getFeedPage(GoogleOperation operation, final URI uri) {
+		return doCoalesced(operation, GoogleAtomFeedPage.class, uri, new ReaderCallback<GoogleAtomFeedPage>() {
+			@Override
+			public GoogleAtomFeedPage execute(RestOperations operations) {
+				return operations.execute(uri, HttpMethod.GET, atomAcceptCallback, feedPageExtractor);
 			}
 		});
 	}
 
+	private static class AtomAcceptCallback implements RequestCallback {
+		@Override
+		public void doWithRequest(ClientHttpRequest request) throws IOException {
+			request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_ATOM_XML));
+		}
+	}
+
+	private class FeedPageExtractor implements ResponseExtractor<GoogleAtomFeedPage> {
+		@Override
+		public GoogleAtomFeedPage extractData(ClientHttpResponse response) throws IOException {
+			MediaType contentType = response.getHeaders().getContentType();
+			Charset charset = contentType == null ? null : contentType.getCharSet();
+			return feedParser.parse(response.getBody(), charset == null ? null : charset.name());
+		}
+	}
+
 	public byte[] getCustomerId(final String token) {
-		return doWithCallback(new ReaderCallback<byte[]>() {
+		DirectoryCache directory = directoryCache;
+		byte[] customer = directory == null ? null : directory.getCustomer();
+		return customer != null ? customer : fetchCustomerId();
+	}
+
+	private byte[] fetchCustomerId() {
+		return doCoalesced(GoogleOperation.GET_CUSTOMER_ID, byte[].class, getCustomerIdRequest.expand(),
+		        new ReaderCallback<byte[]>() {
 			@Override
 			public byte[] execute(RestOperations operations) {
-				byte[] result = RestInvoker
-				        .prepareGetTo(customerIdUrl)
-				        .using(operations)
-				        .expecting(byte[].class)
-				        .withParam("T", token)
-				        .execute();
-				return result;
+				return get(operations, getCustomerIdRequest);
+			}
+		});
+	}
+
+	/**
+	 * Returns the customer record, read straight from the response.
+	 */
+	public GoogleAtom getCustomer(final String token) {
+		DirectoryCache directory = directoryCache;
+		byte[] customer = directory == null ? null : directory.getCustomer();
+		if (customer != null) {
+			try {
+				return atomReader.read(new ByteArrayInputStream(customer), null);
+			} catch (IOException e) {
+				// fetched below
+			}
+		}
+		return doCoalesced(GoogleOperation.GET_CUSTOMER_ID, GoogleAtom.class, getCustomerRequest.expand(),
+		        new ReaderCallback<GoogleAtom>() {
+			@Override
+			public GoogleAtom execute(RestOperations operations) {
+				return get(operations, getCustomerRequest);
 			}
 		});
 	}
 
+	/**
+	 * Returns an iterator over all organization units of the customer, reading
+	 * the feed page by page. The first page is fetched before this method
+	 * returns.
+	 */
+	public GoogleAtomFeedIterator iterateOrgUnits(String customerId) {
+		GoogleAtomFeedPage firstPage = getFeedPage(GoogleOperation.GET_ORG_UNITS,
+		        getOrgUnitsRequest.expand(customerId));
+		return new GoogleAtomFeedIterator(new GoogleAtomFeedIterator.PageFetcher() {
+			@Override
+			public GoogleAtomFeedPage fetch(String url) {
+				return getFeedPage(url);
+			}
+		}, feedExecutor, firstPage);
+	}
+
 	// https://apps-apis.google.com/a/feeds/orgunit/2.0/the customerId/full
 	// organization unit's path
 	// the customerId/the organization user's email
 	public byte[] moveUserToGroup(final String token, final String customerId, final String orgUnit,
 	        final GoogleAtom usersToMoveMessage) {
-		return doWithCallback(new ReaderCallback<byte[]>() {
-			@Override
-			public byte[] execute(RestOperations operations) {
-				byte[] result = RestInvoker
-				        .preparePutTo(moveToGroupUrl + customerId + "/" + orgUnit)
-				        .using(operations)
-				        .expecting(byte[].class)
-				        .withParam("T", token)
-				        .withObject(usersToMoveMessage)
-				        .execute();
-				return result;
+		try {
+			return doWithCallback(GoogleOperation.MOVE_USER_TO_GROUP, new ReaderCallback<byte[]>() {
+				@Override
+				public byte[] execute(RestOperations operations) {
+					return moveUserToGroupRequest.send(operations, usersToMoveMessage, customerId, orgUnit);
+				}
+			});
+		} finally {
+			// also after a failure, the move may have been applied partially
+			invalidateMovedUsers(usersToMoveMessage);
+		}
+	}
+
+	private void invalidateMovedUsers(GoogleAtom usersToMoveMessage) {
+		userGeneration.incrementAndGet();
+		UserCache cache = userCache;
+		DirectoryCache directory = directoryCache;
+		if ((cache == null && directory == null) || usersToMoveMessage.getProperties() == null) {
+			return;
+		}
+		for (GoogleProperty property : usersToMoveMessage.getProperties()) {
+			if (GoogleConstants.USERS_TO_MOVE_MESSAGE_FIELD.equals(property.getName()) && property.getValue() != null) {
+				for (String user : property.getValue().split(",")) {
+					if (user.trim().length() == 0) {
+						continue;
+					}
+					if (cache != null) {
+						cache.invalidate(user.trim());
+					}
+					if (directory != null) {
+						directory.invalidate(user.trim());
+					}
+				}
 			}
-		});
+		}
 	}
 
 }
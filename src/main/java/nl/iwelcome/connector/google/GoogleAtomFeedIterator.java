@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Iterates over the entries of a paged Atom feed by following its
+ * <code>next</code> links. While the entries of one page are consumed, the next
+ * page is already fetched in the background, so at most two pages are held in
+ * memory at any time.
+ */
+public class GoogleAtomFeedIterator implements Iterator<GoogleAtom> {
+
+	/**
+	 * Fetches a single page of the feed.
+	 */
+	public interface PageFetcher {
+		GoogleAtomFeedPage fetch(String url);
+	}
+
+	private final PageFetcher fetcher;
+	private final Executor executor;
+
+	private Iterator<GoogleAtom> entries = Collections.<GoogleAtom> emptyList().iterator();
+	private FutureTask<GoogleAtomFeedPage> nextPage;
+
+	/**
+	 * Constructs a new instance starting at an already fetched first page.
+	 * 
+	 * @param fetcher
+	 *            Fetches the pages.
+	 * @param executor
+	 *            Runs the fetches of the pages following the first one.
+	 * @param firstPage
+	 *            The first page of the feed.
+	 */
+	public GoogleAtomFeedIterator(PageFetcher fetcher, Executor executor, GoogleAtomFeedPage firstPage) {
+		this.fetcher = fetcher;
+		this.executor = executor;
+		accept(firstPage);
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!entries.hasNext()) {
+			if (nextPage == null) {
+				return false;
+			}
+			accept(await(nextPage));
+		}
+		return true;
+	}
+
+	@Override
+	public GoogleAtom next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return entries.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Feeds all remaining entries to the handler until it asks to stop.
+	 */
+	public void handleRemaining(GoogleAtomHandler handler) {
+		while (hasNext()) {
+			if (!handler.handle(next())) {
+				cancel();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops prefetching, the iterator returns no further pages.
+	 */
+	public void cancel() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+	}
+
+	private void accept(GoogleAtomFeedPage page) {
+		entries = page.getEntries().iterator();
+		nextPage = null;
+		if (page.getNext() != null) {
+			final String url = page.getNext();
+			nextPage = new FutureTask<GoogleAtomFeedPage>(new Callable<GoogleAtomFeedPage>() {
+				@Override
+				public GoogleAtomFeedPage call() {
+					return fetcher.fetch(url);
+				}
+			});
+			executor.execute(nextPage);
+		}
+	}
+
+	private static GoogleAtomFeedPage await(FutureTask<GoogleAtomFeedPage> page) {
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while fetching the next page", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RestClientException("Unable to fetch the next page", e.getCause());
+		}
+	}
+}
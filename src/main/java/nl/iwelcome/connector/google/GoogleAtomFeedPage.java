@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.List;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+/**
+ * A single page of an Atom feed: its entries and the link to the next page.
+ */
+public class GoogleAtomFeedPage {
+
+	private final List<GoogleAtom> entries;
+	private final String next;
+
+	public GoogleAtomFeedPage(List<GoogleAtom> entries, String next) {
+		this.entries = entries;
+		this.next = next;
+	}
+
+	public List<GoogleAtom> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the href of the <code>next</code> link, or <code>null</code> on
+	 * the last page.
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	@Override
+	public String toString() {
+		return "GoogleAtomFeedPage [entries=" + entries.size() + ", next=" + next + "]";
+	}
+}
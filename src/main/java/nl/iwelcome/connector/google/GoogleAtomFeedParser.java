@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+
+/**
+ * Reads a page of an Atom feed with a StAX pull parser. Only the entry ids,
+ * the apps:property elements and the <code>next</code> link are kept, all
+ * other elements are skipped.
+ * 
+ * A typical page could be:
+ * <feed xmlns='http://www.w3.org/2005/Atom' xmlns:apps='http://schemas.google.com/apps/2006'>
+ *   <link rel='next' href='https://apps-apis.google.com/a/feeds/user/2.0/example.com?start=jake' />
+ *   <entry>
+ *     <id>https://apps-apis.google.com/a/feeds/user/2.0/example.com/liz%40example.com</id>
+ *     <apps:property name="userEmail" value="liz@example.com" />
+ *   </entry>
+ * </feed>
+ */
+public class GoogleAtomFeedParser {
+
+	private static final String FEED = "feed";
+	private static final String LINK = "link";
+	private static final String NEXT = "next";
+
+	private final GoogleAtomReader entryReader = new GoogleAtomReader();
+
+	/**
+	 * Parses a page, the encoding is taken from the XML declaration.
+	 */
+	public GoogleAtomFeedPage parse(InputStream in) throws IOException {
+		return parse(in, null);
+	}
+
+	/**
+	 * Parses a page.
+	 * 
+	 * @param encoding
+	 *            The encoding declared by the transport, or <code>null</code>
+	 *            to use the one in the XML declaration.
+	 */
+	public GoogleAtomFeedPage parse(InputStream in, String encoding) throws IOException {
+		try {
+			XMLStreamReader reader = entryReader.createReader(in, encoding);
+			try {
+				return parse(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to parse feed: " + e.getMessage(), e);
+		}
+	}
+
+	private GoogleAtomFeedPage parse(XMLStreamReader reader) throws XMLStreamException {
+		List<GoogleAtom> entries = new ArrayList<GoogleAtom>();
+		String next = null;
+		reader.nextTag();
+		reader.require(XMLStreamConstants.START_ELEMENT, GoogleConstants.ATOM_NAMESPACE, FEED);
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (GoogleAtomReader.isAtom(reader, GoogleAtomReader.ENTRY)) {
+				entries.add(GoogleAtomReader.readEntry(reader));
+			} else if (GoogleAtomReader.isAtom(reader, LINK) && NEXT.equals(reader.getAttributeValue(null, "rel"))) {
+				next = reader.getAttributeValue(null, "href");
+				GoogleAtomReader.skipElement(reader);
+			} else {
+				GoogleAtomReader.skipElement(reader);
+			}
+		}
+		return new GoogleAtomFeedPage(entries, next);
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+public interface GoogleAtomHandler {
+
+	/**
+	 * Receives the next entry of a feed.
+	 * 
+	 * @return <code>false</code> to stop reading the feed.
+	 */
+	boolean handle(GoogleAtom entry);
+
+}
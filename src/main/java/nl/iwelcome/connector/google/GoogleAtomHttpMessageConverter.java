@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+/**
+ * Reads and writes {@link GoogleAtom} entries with {@link GoogleAtomReader}
+ * and {@link GoogleAtomWriter}, straight from and to the message streams.
+ */
+public class GoogleAtomHttpMessageConverter extends AbstractHttpMessageConverter<GoogleAtom> {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final GoogleAtomReader reader = new GoogleAtomReader();
+	private final GoogleAtomWriter writer = new GoogleAtomWriter();
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return clazz == GoogleAtom.class;
+	}
+
+	@Override
+	public List<MediaType> getSupportedMediaTypes() {
+		return Arrays.asList(new MediaType("application", "atom+xml", UTF_8), MediaType.APPLICATION_XML,
+		        MediaType.TEXT_XML);
+	}
+
+	@Override
+	protected GoogleAtom readInternal(Class<? extends GoogleAtom> clazz, HttpInputMessage inputMessage)
+	        throws IOException, HttpMessageNotReadableException {
+		MediaType contentType = inputMessage.getHeaders().getContentType();
+		Charset charset = contentType == null ? null : contentType.getCharSet();
+		return reader.read(inputMessage.getBody(), charset == null ? null : charset.name());
+	}
+
+	@Override
+	protected void writeInternal(GoogleAtom entry, HttpOutputMessage outputMessage) throws IOException,
+	        HttpMessageNotWritableException {
+		writer.write(entry, outputMessage.getBody(), UTF_8.name());
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * Reads {@link GoogleAtom} entries with a StAX pull parser, without JAXB. Only
+ * the id and the apps:property elements of an entry are kept, all other
+ * elements are skipped. Instances are thread-safe.
+ */
+public class GoogleAtomReader {
+
+	static final String ENTRY = GoogleConstants.ATOM_NAMESPACE_NAME;
+	static final String ID = "id";
+
+	private final XMLInputFactory factory = GoogleXmlContext.getInputFactory();
+
+	/**
+	 * Reads a document of which the root element is an entry.
+	 * 
+	 * @param encoding
+	 *            The encoding declared by the transport, or <code>null</code>
+	 *            to use the one in the XML declaration.
+	 */
+	public GoogleAtom read(InputStream in, String encoding) throws IOException {
+		try {
+			XMLStreamReader reader = createReader(in, encoding);
+			try {
+				reader.nextTag();
+				reader.require(XMLStreamConstants.START_ELEMENT, GoogleConstants.ATOM_NAMESPACE, ENTRY);
+				return readEntry(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to parse entry: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates a reader for a document.
+	 * 
+	 * @param encoding
+	 *            The encoding declared by the transport, or <code>null</code>
+	 *            to use the one in the XML declaration.
+	 */
+	XMLStreamReader createReader(InputStream in, String encoding) throws XMLStreamException {
+		return encoding == null ? factory.createXMLStreamReader(in) : factory.createXMLStreamReader(in, encoding);
+	}
+
+	/**
+	 * Reads the entry the reader is positioned on, leaving the reader on its
+	 * end tag.
+	 */
+	static GoogleAtom readEntry(XMLStreamReader reader) throws XMLStreamException {
+		GoogleAtom entry = new GoogleAtom();
+		List<GoogleProperty> properties = new ArrayList<GoogleProperty>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (isAtom(reader, ID)) {
+				entry.setId(reader.getElementText());
+			} else if (GoogleConstants.GOOGLE_NAMESPACE.equals(reader.getNamespaceURI())
+			        && GoogleConstants.GOOGLE_NAMESPACE_NAME.equals(reader.getLocalName())) {
+				properties.add(new GoogleProperty(reader.getAttributeValue(null, GoogleConstants.NAME_MESSAGE_FIELD),
+				        reader.getAttributeValue(null, GoogleConstants.VALUE_MESSAGE_FIELD)));
+				skipElement(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+		entry.setProperties(properties.toArray(new GoogleProperty[properties.size()]));
+		return entry;
+	}
+
+	static boolean isAtom(XMLStreamReader reader, String localName) {
+		return GoogleConstants.ATOM_NAMESPACE.equals(reader.getNamespaceURI())
+		        && localName.equals(reader.getLocalName());
+	}
+
+	/**
+	 * Advances the reader to the end tag of the current element, ignoring
+	 * whatever it contains.
+	 */
+	static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
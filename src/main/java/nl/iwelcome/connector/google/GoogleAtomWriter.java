@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * Writes a {@link GoogleAtom} as an entry document, without JAXB. The output
+ * has the same elements as the JAXB mapping of the class. The schema is small
+ * enough to write directly; a StAX writer escapes values one character at a
+ * time, which is slow for long usersToMove lists. Instances are thread-safe.
+ */
+public class GoogleAtomWriter {
+
+	public void write(GoogleAtom entry, OutputStream out, String encoding) throws IOException {
+		// the encoder of the stream writer buffers, no need for another buffer
+		Writer writer = new OutputStreamWriter(out, encoding);
+		writer.write("<?xml version='1.0' encoding='");
+		writer.write(encoding);
+		writer.write("'?><atom:");
+		writer.write(GoogleConstants.ATOM_NAMESPACE_NAME);
+		writer.write(" xmlns:atom='");
+		writer.write(GoogleConstants.ATOM_NAMESPACE);
+		writer.write("' xmlns:apps='");
+		writer.write(GoogleConstants.GOOGLE_NAMESPACE);
+		writer.write("'>");
+		if (entry.getId() != null) {
+			writer.write("<atom:id>");
+			escape(writer, entry.getId());
+			writer.write("</atom:id>");
+		}
+		if (entry.getProperties() != null) {
+			for (GoogleProperty property : entry.getProperties()) {
+				writer.write("<apps:");
+				writer.write(GoogleConstants.GOOGLE_NAMESPACE_NAME);
+				writeAttribute(writer, GoogleConstants.NAME_MESSAGE_FIELD, property.getName());
+				writeAttribute(writer, GoogleConstants.VALUE_MESSAGE_FIELD, property.getValue());
+				writer.write("/>");
+			}
+		}
+		writer.write("</atom:");
+		writer.write(GoogleConstants.ATOM_NAMESPACE_NAME);
+		writer.write('>');
+		writer.flush();
+	}
+
+	private static void writeAttribute(Writer writer, String name, String value) throws IOException {
+		if (value != null) {
+			writer.write(' ');
+			writer.write(name);
+			writer.write("='");
+			escape(writer, value);
+			writer.write('\'');
+		}
+	}
+
+	/**
+	 * Writes the value with the markup characters escaped, copying the runs
+	 * in between in bulk.
+	 */
+	private static void escape(Writer writer, String value) throws IOException {
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			String replacement;
+			switch (value.charAt(i)) {
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '\'':
+				replacement = "&apos;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			default:
+				continue;
+			}
+			writer.write(value, start, i - start);
+			writer.write(replacement);
+			start = i + 1;
+		}
+		writer.write(value, start, length - start);
+	}
+}
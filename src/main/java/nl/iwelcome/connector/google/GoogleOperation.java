@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+/**
+ * The remote operations performed by {@link GoogleAppsTemplate}, used to
+ * select the limits, policies and statistics that apply to a call.
+ */
+public enum GoogleOperation {
+
+	AUTHENTICATE(Kind.WRITE, false),
+	GET_TOKEN(Kind.READ, true),
+	GET_USER(Kind.READ, true),
+	GET_ALL_USER(Kind.READ, true),
+	GET_FEED_PAGE(Kind.READ, true),
+	GET_CUSTOMER_ID(Kind.READ, true),
+	GET_ORG_UNITS(Kind.READ, true),
+
+	/**
+	 * Moving users to the organization unit they are already in changes
+	 * nothing, so the move can be repeated safely.
+	 */
+	MOVE_USER_TO_GROUP(Kind.WRITE, true),
+
+	/**
+	 * A callback given to {@link GoogleAppsOperations#doWithCallback}, of
+	 * which nothing is known.
+	 */
+	CALLBACK(Kind.WRITE, false);
+
+	public enum Kind {
+		READ, WRITE
+	}
+
+	private final Kind kind;
+	private final boolean idempotent;
+
+	private GoogleOperation(Kind kind, boolean idempotent) {
+		this.kind = kind;
+		this.idempotent = idempotent;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Indicates if executing the operation twice has the same effect as
+	 * executing it once, which makes it safe to retry.
+	 */
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+}
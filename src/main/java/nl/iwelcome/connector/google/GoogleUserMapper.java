@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+
+/**
+ * Maps a user entry to a connector object. The user name is both the uid and
+ * the name of the object, every apps:property of the entry becomes an
+ * attribute.
+ */
+final class GoogleUserMapper {
+
+	private final Set<String> attributesToGet;
+
+	/**
+	 * Constructs a mapper returning the attributes asked for in the options,
+	 * or all attributes when the options do not name any.
+	 */
+	GoogleUserMapper(OperationOptions options) {
+		String[] names = options == null ? null : options.getAttributesToGet();
+		attributesToGet = names == null ? null : Collections.unmodifiableSet(new HashSet<String>(Arrays
+		        .asList(names)));
+	}
+
+	/**
+	 * Returns the connector object for the entry, or <code>null</code> when
+	 * the entry does not identify a user.
+	 */
+	ConnectorObject toConnectorObject(GoogleAtom entry) {
+		String username = getUsername(entry);
+		if (username == null) {
+			return null;
+		}
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(ObjectClass.ACCOUNT);
+		builder.setUid(username);
+		builder.setName(username);
+		if (entry.getProperties() != null) {
+			for (GoogleProperty property : entry.getProperties()) {
+				if (GoogleConstants.IS_SUSPENDED_MESSAGE_FIELD.equals(property.getName())) {
+					if (isRequested(OperationalAttributes.ENABLE_NAME)) {
+						builder.addAttribute(OperationalAttributes.ENABLE_NAME,
+						        !Boolean.parseBoolean(property.getValue()));
+					}
+				} else if (property.getValue() != null && isRequested(property.getName())) {
+					builder.addAttribute(property.getName(), property.getValue());
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the user name of an entry, its userEmail property or else the
+	 * last segment of its id.
+	 */
+	static String getUsername(GoogleAtom entry) {
+		if (entry.getProperties() != null) {
+			for (GoogleProperty property : entry.getProperties()) {
+				if (GoogleConstants.USER_EMAIL_MESSAGE_FIELD.equals(property.getName())) {
+					return property.getValue();
+				}
+			}
+		}
+		String id = entry.getId();
+		if (id == null) {
+			return null;
+		}
+		id = id.trim();
+		int slash = id.lastIndexOf('/');
+		return slash == id.length() - 1 ? null : id.substring(slash + 1);
+	}
+
+	private boolean isRequested(String name) {
+		return attributesToGet == null || attributesToGet.contains(name);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleConstants;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * The XML machinery shared by all templates and services of a class loader:
+ * one JAXBContext for the domain classes, created on first use, with pools of
+ * marshallers and unmarshallers, and one configured StAX input factory. Call
+ * {@link #warmUp()} or {@link #warmUpInBackground()} to pay the set up cost
+ * before the first request instead of during it.
+ */
+public final class GoogleXmlContext {
+
+	private static final int MAX_POOLED = 16;
+
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+	private static final Queue<Marshaller> MARSHALLERS = new ConcurrentLinkedQueue<Marshaller>();
+	private static final Queue<Unmarshaller> UNMARSHALLERS = new ConcurrentLinkedQueue<Unmarshaller>();
+	private static final AtomicInteger POOLED_MARSHALLERS = new AtomicInteger();
+	private static final AtomicInteger POOLED_UNMARSHALLERS = new AtomicInteger();
+	private static final AtomicBoolean WARMING_UP = new AtomicBoolean();
+
+	private GoogleXmlContext() {
+	}
+
+	/**
+	 * Creates the context on first use, class initialization guarantees it
+	 * happens once.
+	 */
+	private static class JaxbContextHolder {
+		private static final JAXBContext CONTEXT = createJaxbContext();
+	}
+
+	/**
+	 * Returns the JAXBContext binding the classes of the domain package.
+	 */
+	public static JAXBContext getJaxbContext() {
+		return JaxbContextHolder.CONTEXT;
+	}
+
+	/**
+	 * Returns the StAX input factory used for all Google documents. Only create
+	 * readers with it, do not change its properties.
+	 */
+	public static XMLInputFactory getInputFactory() {
+		return INPUT_FACTORY;
+	}
+
+	/**
+	 * Indicates if the given class is bound by the shared JAXBContext.
+	 */
+	public static boolean isBound(Class<?> clazz) {
+		return clazz == GoogleAtom.class || clazz == GoogleProperty.class;
+	}
+
+	public static void marshal(Object object, Result result) throws JAXBException {
+		Marshaller marshaller = MARSHALLERS.poll();
+		if (marshaller == null) {
+			marshaller = getJaxbContext().createMarshaller();
+		} else {
+			POOLED_MARSHALLERS.decrementAndGet();
+		}
+		marshaller.marshal(object, result);
+		if (POOLED_MARSHALLERS.incrementAndGet() <= MAX_POOLED) {
+			MARSHALLERS.offer(marshaller);
+		} else {
+			POOLED_MARSHALLERS.decrementAndGet();
+		}
+	}
+
+	public static Object unmarshal(Source source) throws JAXBException {
+		Unmarshaller unmarshaller = UNMARSHALLERS.poll();
+		if (unmarshaller == null) {
+			unmarshaller = getJaxbContext().createUnmarshaller();
+		} else {
+			POOLED_UNMARSHALLERS.decrementAndGet();
+		}
+		Object result = unmarshaller.unmarshal(source);
+		if (POOLED_UNMARSHALLERS.incrementAndGet() <= MAX_POOLED) {
+			UNMARSHALLERS.offer(unmarshaller);
+		} else {
+			POOLED_UNMARSHALLERS.decrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Creates the JAXBContext and loads the StAX parser classes by reading a
+	 * small entry.
+	 */
+	public static void warmUp() {
+		getJaxbContext();
+		try {
+			byte[] entry = ("<entry xmlns='" + GoogleConstants.ATOM_NAMESPACE + "'/>").getBytes("UTF-8");
+			new GoogleAtomReader().read(new ByteArrayInputStream(entry), null);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to warm up the XML parser", e);
+		}
+	}
+
+	/**
+	 * Runs {@link #warmUp()} on a daemon thread, once per class loader.
+	 */
+	public static void warmUpInBackground() {
+		if (!WARMING_UP.compareAndSet(false, true)) {
+			return;
+		}
+		new NamedThreadFactory("google-xml-warm-up").newThread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		}).start();
+	}
+
+	private static JAXBContext createJaxbContext() {
+		try {
+			return JAXBContext.newInstance(GoogleAtom.class, GoogleProperty.class);
+		} catch (JAXBException e) {
+			throw new IllegalStateException("Unable to create the JAXBContext of the domain classes", e);
+		}
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+}
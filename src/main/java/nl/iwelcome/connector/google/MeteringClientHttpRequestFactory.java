@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Counts the status codes and the body bytes of the exchanges made while an
+ * operation is current, see {@link OperationMetrics#current()}. Requests made
+ * outside of an operation are not wrapped.
+ */
+public class MeteringClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+	private final ClientHttpRequestFactory factory;
+
+	public MeteringClientHttpRequestFactory(ClientHttpRequestFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		ClientHttpRequest request = factory.createRequest(uri, httpMethod);
+		OperationMetrics metrics = OperationMetrics.current();
+		return metrics == null ? request : new MeteringClientHttpRequest(request, metrics);
+	}
+
+	private static class MeteringClientHttpRequest implements ClientHttpRequest {
+
+		private final ClientHttpRequest decorated;
+		private final OperationMetrics metrics;
+		private CountingOutputStream body;
+
+		public MeteringClientHttpRequest(ClientHttpRequest request, OperationMetrics metrics) {
+			this.decorated = request;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return decorated.getMethod();
+		}
+
+		@Override
+		public URI getURI() {
+			return decorated.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return decorated.getHeaders();
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			if (body == null) {
+				body = new CountingOutputStream(decorated.getBody());
+			}
+			return body;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			if (body != null) {
+				metrics.recordBytesSent(body.count);
+			}
+			ClientHttpResponse response;
+			try {
+				response = decorated.execute();
+				metrics.recordStatus(response.getStatusCode().value());
+			} catch (IOException e) {
+				metrics.recordIoError();
+				throw e;
+			}
+			return new MeteringClientHttpResponse(response, metrics);
+		}
+	}
+
+	/**
+	 * Records the bytes read from the body when the response is closed.
+	 */
+	private static class MeteringClientHttpResponse implements ClientHttpResponse {
+
+		private final ClientHttpResponse decorated;
+		private final OperationMetrics metrics;
+		private CountingInputStream body;
+
+		public MeteringClientHttpResponse(ClientHttpResponse response, OperationMetrics metrics) {
+			this.decorated = response;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return decorated.getStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return decorated.getStatusText();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return decorated.getHeaders();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (body == null) {
+				body = new CountingInputStream(decorated.getBody());
+			}
+			return body;
+		}
+
+		@Override
+		public void close() {
+			if (body != null) {
+				metrics.recordBytesReceived(body.count);
+				body.count = 0;
+			}
+			decorated.close();
+		}
+	}
+
+	/**
+	 * Counts in a plain field, a body is written by a single thread.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -19,15 +19,21 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.xml.bind.JAXBException;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 
-import nl.iwelcome.connector.google.domain.GoogleAtom;
-
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
 import org.springframework.http.converter.xml.Jaxb2RootElementHttpMessageConverter;
 
+/**
+ * A JAXB converter for the domain classes that uses the JAXBContext and the
+ * pooled marshallers of {@link GoogleXmlContext}, instead of building a
+ * context per converter instance.
+ */
 public class MyJaxb2Converter extends Jaxb2RootElementHttpMessageConverter {
 
 	@Override
@@ -36,34 +42,35 @@ public class MyJaxb2Converter extends Jaxb2RootElementHttpMessageConverter {
 	}
 
 	@Override
-    protected Object readFromSource(Class<?> clazz, HttpHeaders headers, Source source) throws IOException {
-	    // TODO Auto-generated method stub
-	    return super.readFromSource(clazz, headers, source);
-    }
+	protected Object readFromSource(Class<?> clazz, HttpHeaders headers, Source source) throws IOException {
+		try {
+			return GoogleXmlContext.unmarshal(source);
+		} catch (JAXBException e) {
+			throw new HttpMessageNotReadableException("Could not unmarshal to [" + clazz + "]: " + e.getMessage(), e);
+		}
+	}
 
 	@Override
-    protected void writeToResult(Object o, HttpHeaders headers, Result result) throws IOException {
-	    // TODO Auto-generated method stub
-	    super.writeToResult(o, headers, result);
-    }
+	protected void writeToResult(Object o, HttpHeaders headers, Result result) throws IOException {
+		try {
+			GoogleXmlContext.marshal(o, result);
+		} catch (JAXBException e) {
+			throw new HttpMessageNotWritableException("Could not marshal [" + o + "]: " + e.getMessage(), e);
+		}
+	}
 
 	@Override
-    public boolean canRead(Class<?> clazz, MediaType mediaType) {
-	    // TODO Auto-generated method stub
-	    return super.canRead(clazz, mediaType);
-    }
+	protected boolean supports(Class<?> clazz) {
+		return GoogleXmlContext.isBound(clazz);
+	}
 
 	@Override
-    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
-	    // TODO Auto-generated method stub
-	    return super.canWrite(clazz, mediaType);
-    }
+	public boolean canRead(Class<?> clazz, MediaType mediaType) {
+		return supports(clazz) && canRead(mediaType);
+	}
 
 	@Override
-    protected boolean supports(Class<?> clazz) {
-		return clazz.getName().equals(GoogleAtom.class);
-    }
-	
-	
-
+	public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+		return supports(clazz) && canWrite(mediaType);
+	}
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics of a single {@link GoogleOperation}. The operation being
+ * executed by a thread is kept in a thread local, so the HTTP layer can
+ * attribute statuses and bytes to it without knowing about operations. All
+ * counters are updated without locks.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+	private static final ThreadLocal<OperationMetrics> CURRENT = new ThreadLocal<OperationMetrics>();
+
+	private static final int STATUS_CODES = 600;
+
+	private final GoogleOperation operation;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_CODES);
+	private final AtomicLong ioErrors = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong authRefreshes = new AtomicLong();
+
+	public OperationMetrics(GoogleOperation operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * Returns the metrics of the operation the current thread executes, or
+	 * <code>null</code>.
+	 */
+	public static OperationMetrics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Marks the start of the operation on the current thread.
+	 * 
+	 * @return The metrics to pass to {@link #exit(OperationMetrics, long,
+	 *         boolean)}.
+	 */
+	public OperationMetrics enter() {
+		OperationMetrics previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	/**
+	 * Marks the end of the operation on the current thread and records its
+	 * latency.
+	 */
+	public void exit(OperationMetrics previous, long nanos, boolean failed) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+		latency.record(nanos);
+		if (failed) {
+			failures.incrementAndGet();
+		}
+	}
+
+	public void recordStatus(int statusCode) {
+		if (statusCode >= 0 && statusCode < STATUS_CODES) {
+			statusCounts.incrementAndGet(statusCode);
+		}
+	}
+
+	public void recordIoError() {
+		ioErrors.incrementAndGet();
+	}
+
+	public void recordBytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	public void recordBytesReceived(long bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	public void recordAuthRefresh() {
+		authRefreshes.incrementAndGet();
+	}
+
+	public GoogleOperation getOperation() {
+		return operation;
+	}
+
+	@Override
+	public long getCallCount() {
+		return latency.getCount();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.getMeanMillis();
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latency.getPercentileMillis(0.5);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latency.getPercentileMillis(0.99);
+	}
+
+	@Override
+	public double getP999Millis() {
+		return latency.getPercentileMillis(0.999);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latency.getMaxMillis();
+	}
+
+	@Override
+	public Map<String, Long> getStatusCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (int i = 0; i < STATUS_CODES; i++) {
+			long count = statusCounts.get(i);
+			if (count > 0) {
+				result.put(String.valueOf(i), count);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public long getIoErrorCount() {
+		return ioErrors.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public long getAuthRefreshCount() {
+		return authRefreshes.get();
+	}
+
+	@Override
+	public String toString() {
+		return operation + " [calls=" + getCallCount() + ", failures=" + getFailureCount() + ", p50="
+		        + getP50Millis() + "ms, p99=" + getP99Millis() + "ms, p999=" + getP999Millis() + "ms, statuses="
+		        + getStatusCounts() + ", sent=" + getBytesSent() + ", received=" + getBytesReceived()
+		        + ", authRefreshes=" + getAuthRefreshCount() + "]";
+	}
+}
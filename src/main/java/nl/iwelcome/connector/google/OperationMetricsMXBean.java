@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the metrics of a single {@link GoogleOperation}. Latencies
+ * are in milliseconds and cover a whole call, retries included.
+ */
+public interface OperationMetricsMXBean {
+
+	long getCallCount();
+
+	long getFailureCount();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP99Millis();
+
+	double getP999Millis();
+
+	double getMaxMillis();
+
+	/**
+	 * Returns the number of HTTP responses by status code, every attempt
+	 * counted.
+	 */
+	Map<String, Long> getStatusCounts();
+
+	/**
+	 * Returns the number of exchanges that ended without a response.
+	 */
+	long getIoErrorCount();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	/**
+	 * Returns the number of times the token was renewed after Google rejected
+	 * it during this operation.
+	 */
+	long getAuthRefreshCount();
+
+}
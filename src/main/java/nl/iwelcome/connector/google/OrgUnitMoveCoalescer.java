@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers single user moves per organization unit and sends them as one
+ * usersToMove message. A buffer is flushed when the window expires or when it
+ * holds the maximum number of users, whichever comes first. Typically used
+ * like this:
+ * 
+ * <pre>
+ * OrgUnitMoveCoalescer coalescer = new OrgUnitMoveCoalescer(service, 50, 100);
+ * Future&lt;Boolean&gt; moved = coalescer.moveUserToOrgUnit(&quot;liz@example.com&quot;, &quot;sales&quot;);
+ * </pre>
+ */
+public class OrgUnitMoveCoalescer {
+
+	private final GoogleAppsService service;
+	private final long window;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService scheduler;
+
+	private final Map<String, Batch> pending = new HashMap<String, Batch>();
+	private boolean shutdown;
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param service
+	 *            The service used to send the messages.
+	 * @param window
+	 *            The time in milliseconds moves are buffered.
+	 * @param maxBatchSize
+	 *            The number of users that flushes a buffer immediately.
+	 */
+	public OrgUnitMoveCoalescer(GoogleAppsService service, long window, int maxBatchSize) {
+		this(service, window, maxBatchSize, 1);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param service
+	 *            The service used to send the messages.
+	 * @param window
+	 *            The time in milliseconds moves are buffered.
+	 * @param maxBatchSize
+	 *            The number of users that flushes a buffer immediately.
+	 * @param senders
+	 *            The number of threads sending messages concurrently.
+	 */
+	public OrgUnitMoveCoalescer(GoogleAppsService service, long window, int maxBatchSize, int senders) {
+		this.service = service;
+		this.window = window;
+		this.maxBatchSize = Math.min(maxBatchSize, service.getMaxUsersPerMove());
+		this.scheduler = Executors.newScheduledThreadPool(senders, new NamedThreadFactory("google-orgunit-move"));
+	}
+
+	/**
+	 * Queues the move of a single user.
+	 * 
+	 * @return A future completing with the outcome of the message that carried
+	 *         the user.
+	 * @throws RejectedExecutionException
+	 *             When the coalescer was shut down.
+	 */
+	public Future<Boolean> moveUserToOrgUnit(String user, String orgUnit) {
+		// "/sales/" and "sales" share a message
+		orgUnit = OrgUnitTree.normalize(orgUnit);
+		// scheduling under the lock, so no batch is left behind by shutdown
+		synchronized (pending) {
+			if (shutdown) {
+				throw new RejectedExecutionException("the coalescer is shut down");
+			}
+			Batch batch = pending.get(orgUnit);
+			if (batch == null) {
+				batch = new Batch(orgUnit);
+				scheduleFlush(batch);
+				pending.put(orgUnit, batch);
+			}
+			batch.users.add(user);
+			if (batch.users.size() >= maxBatchSize) {
+				pending.remove(orgUnit);
+				scheduler.execute(batch.task);
+			}
+			return batch.task;
+		}
+	}
+
+	/**
+	 * Sends all buffered moves and stops accepting new ones.
+	 */
+	public void shutdown() {
+		synchronized (pending) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+			for (Batch batch : pending.values()) {
+				scheduler.execute(batch.task);
+			}
+			pending.clear();
+			scheduler.shutdown();
+		}
+	}
+
+	private void scheduleFlush(final Batch batch) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (pending) {
+					if (pending.get(batch.orgUnit) == batch) {
+						pending.remove(batch.orgUnit);
+					}
+				}
+				// a no-op when the batch was already flushed because it was full
+				batch.task.run();
+			}
+		}, window, TimeUnit.MILLISECONDS);
+	}
+
+	private class Batch {
+
+		private final String orgUnit;
+		private final List<String> users = new ArrayList<String>();
+		private final FutureTask<Boolean> task;
+
+		private Batch(final String orgUnit) {
+			this.orgUnit = orgUnit;
+			this.task = new FutureTask<Boolean>(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return service.moveUsersToOrgUnit(users, orgUnit);
+				}
+			});
+		}
+	}
+}
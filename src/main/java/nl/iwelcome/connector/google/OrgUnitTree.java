@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The organization units of a customer, held in a trie keyed by path segment
+ * with an index from path to node. The tree is loaded on first use and
+ * refreshed when its time to live expires, or when a unit is asked for that
+ * is not known and the last load is older than the minimum reload interval.
+ * A refresh only adds and removes the units that changed, so readers never
+ * see an empty tree. Lookups ignore case and redundant slashes and resolve to
+ * the path as Google spells it, for instance <code>" /sales//EMEA/"</code> to
+ * <code>"Sales/EMEA"</code>. The root is the empty path.
+ */
+public class OrgUnitTree {
+
+	public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(15);
+	public static final long DEFAULT_MIN_RELOAD_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Loads the paths of all organization units, called by at most one thread
+	 * at a time.
+	 */
+	public interface Loader {
+		Collection<String> load();
+	}
+
+	private final Loader loader;
+	private final long timeToLive;
+	private final long minReloadInterval;
+	private final Object lock = new Object();
+
+	private final Node root = new Node(null, "", "");
+	// lower-cased path to node
+	private final ConcurrentMap<String, Node> index = new ConcurrentHashMap<String, Node>();
+
+	private volatile long loadedAt;
+	private volatile boolean stale = true;
+
+	public OrgUnitTree(Loader loader) {
+		this(loader, DEFAULT_TIME_TO_LIVE, DEFAULT_MIN_RELOAD_INTERVAL);
+	}
+
+	/**
+	 * @param loader
+	 *            The loader used to fetch the paths.
+	 * @param timeToLive
+	 *            The time in milliseconds after which the tree is refreshed.
+	 * @param minReloadInterval
+	 *            The time in milliseconds that must pass after a load before a
+	 *            lookup of an unknown unit loads the tree again.
+	 */
+	public OrgUnitTree(Loader loader, long timeToLive, long minReloadInterval) {
+		this.loader = loader;
+		this.timeToLive = timeToLive;
+		this.minReloadInterval = minReloadInterval;
+		index.put("", root);
+	}
+
+	/**
+	 * Returns the path with leading, trailing and repeated slashes and the
+	 * blanks around segments removed, or the empty path for the root.
+	 */
+	public static String normalize(String path) {
+		if (path == null) {
+			throw new IllegalArgumentException("path must not be null");
+		}
+		StringBuilder builder = new StringBuilder(path.length());
+		for (String segment : path.split("/")) {
+			segment = segment.trim();
+			if (segment.length() > 0) {
+				if (builder.length() > 0) {
+					builder.append('/');
+				}
+				builder.append(segment);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Indicates if the organization unit exists.
+	 */
+	public boolean contains(String path) {
+		return resolve(path) != null;
+	}
+
+	/**
+	 * Returns the path of the organization unit as Google spells it, or
+	 * <code>null</code> when it does not exist.
+	 */
+	public String resolve(String path) {
+		Node node = find(path);
+		return node == null ? null : node.path;
+	}
+
+	/**
+	 * Returns the path of the parent, or <code>null</code> for the root or an
+	 * unknown unit.
+	 */
+	public String getParent(String path) {
+		Node node = find(path);
+		return node == null || node.parent == null ? null : node.parent.path;
+	}
+
+	/**
+	 * Returns the paths of the direct children in alphabetical order, empty for
+	 * an unknown unit.
+	 */
+	public List<String> getChildren(String path) {
+		Node node = find(path);
+		List<String> children = new ArrayList<String>();
+		if (node != null) {
+			for (Node child : node.children.values()) {
+				children.add(child.path);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Returns the paths of all units below the given one, parents before their
+	 * children.
+	 */
+	public List<String> getDescendants(String path) {
+		Node node = find(path);
+		List<String> descendants = new ArrayList<String>();
+		if (node != null) {
+			collect(node, descendants);
+		}
+		return descendants;
+	}
+
+	/**
+	 * Returns the number of units, without the root.
+	 */
+	public int size() {
+		ensureFresh();
+		return index.size() - 1;
+	}
+
+	/**
+	 * Loads the paths and applies the differences with the current tree.
+	 * 
+	 * @return The number of units added or removed.
+	 */
+	public int refresh() {
+		synchronized (lock) {
+			return load();
+		}
+	}
+
+	/**
+	 * Marks the tree stale, the next lookup refreshes it.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	private Node find(String path) {
+		String key = normalize(path).toLowerCase(Locale.ENGLISH);
+		ensureFresh();
+		Node node = index.get(key);
+		if (node == null && System.currentTimeMillis() - loadedAt >= minReloadInterval) {
+			synchronized (lock) {
+				// another thread may have loaded it in the mean time
+				node = index.get(key);
+				if (node == null && System.currentTimeMillis() - loadedAt >= minReloadInterval) {
+					load();
+					node = index.get(key);
+				}
+			}
+		}
+		return node;
+	}
+
+	private void ensureFresh() {
+		if (isFresh()) {
+			return;
+		}
+		synchronized (lock) {
+			if (!isFresh()) {
+				load();
+			}
+		}
+	}
+
+	private boolean isFresh() {
+		return !stale && System.currentTimeMillis() - loadedAt < timeToLive;
+	}
+
+	private int load() {
+		Map<String, String> paths = new HashMap<String, String>();
+		for (String path : loader.load()) {
+			String normalized = normalize(path);
+			// the parents as well, in case the feed leaves one out
+			for (int end = normalized.indexOf('/'); end > 0; end = normalized.indexOf('/', end + 1)) {
+				String parent = normalized.substring(0, end);
+				if (!paths.containsKey(parent.toLowerCase(Locale.ENGLISH))) {
+					paths.put(parent.toLowerCase(Locale.ENGLISH), parent);
+				}
+			}
+			if (normalized.length() > 0) {
+				paths.put(normalized.toLowerCase(Locale.ENGLISH), normalized);
+			}
+		}
+		int changes = 0;
+		for (Node node : index.values()) {
+			// also replaces a unit of which only the case of the name changed
+			if (node != root && index.containsKey(node.key) && !node.path.equals(paths.get(node.key))) {
+				changes += remove(node);
+			}
+		}
+		for (String path : paths.values()) {
+			changes += add(path);
+		}
+		loadedAt = System.currentTimeMillis();
+		stale = false;
+		return changes;
+	}
+
+	private int add(String path) {
+		int added = 0;
+		Node node = root;
+		for (String segment : path.split("/")) {
+			String name = segment.toLowerCase(Locale.ENGLISH);
+			Node child = node.children.get(name);
+			if (child == null) {
+				String childPath = node == root ? segment : node.path + "/" + segment;
+				child = new Node(node, childPath, childPath.toLowerCase(Locale.ENGLISH));
+				node.children.put(name, child);
+				index.put(child.key, child);
+				added++;
+			}
+			node = child;
+		}
+		return added;
+	}
+
+	private int remove(Node node) {
+		int removed = 1;
+		for (Node child : node.children.values()) {
+			removed += remove(child);
+		}
+		index.remove(node.key);
+		node.parent.children.remove(node.key.substring(node.key.lastIndexOf('/') + 1));
+		return removed;
+	}
+
+	private static void collect(Node node, List<String> paths) {
+		for (Node child : node.children.values()) {
+			paths.add(child.path);
+			collect(child, paths);
+		}
+	}
+
+	private static final class Node {
+
+		private final Node parent;
+		private final String path;
+		private final String key;
+		// lower-cased segment to child, sorted for listing
+		private final ConcurrentMap<String, Node> children = new ConcurrentSkipListMap<String, Node>();
+
+		Node(Node parent, String path, String key) {
+			this.parent = parent;
+			this.path = path;
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Exports all users by reading ranges of the user feed concurrently. The feed
+ * is sorted by user name and can start at any name, so the name space is cut
+ * into ranges that each are read from their start until the first user
+ * beyond their end. The initial ranges divide the alphabet of user names
+ * evenly. When a page shows that a range holds more than a page and no work
+ * is queued, the range is split and the rest is forked to the pool, where
+ * idle workers steal it. The page serves as the sample for the split: it is
+ * placed a few pages beyond the last user read, assuming the names go on as
+ * densely as on the page, or halfway to the end of the range when that is
+ * closer. The entries are handed to the handler in feed order on the calling
+ * thread while the ranges are read, so only the pages of ranges that are ahead
+ * of the handler are buffered; a worker ahead by more than a few pages per
+ * worker waits for the handler.
+ * Typically used like this:
+ * 
+ * <pre>
+ * ParallelUserExporter exporter = new ParallelUserExporter(template, 8);
+ * exporter.export(handler);
+ * exporter.shutdown();
+ * </pre>
+ */
+public class ParallelUserExporter {
+
+	/**
+	 * The characters Google allows in user names, in sort order.
+	 */
+	static final String ALPHABET = "'-.0123456789_abcdefghijklmnopqrstuvwxyz";
+
+	// digits of a key compared when splitting, RADIX ^ KEY_DIGITS fits a long
+	private static final int KEY_DIGITS = 11;
+	private static final int RADIX = ALPHABET.length() + 1;
+	private static final long KEY_LIMIT = pow(RADIX, KEY_DIGITS);
+
+	/**
+	 * The number of pages, at the density of the last page read, a range
+	 * keeps when it is split.
+	 */
+	static final int PAGES_PER_SPLIT = 4;
+
+	/**
+	 * The number of pages per worker buffered ahead of the handler, beyond
+	 * which the workers wait.
+	 */
+	static final int BUFFERED_PAGES_PER_WORKER = 4;
+
+	private final GoogleAppsTemplate template;
+	private final ForkJoinPool pool;
+	private final int initialRanges;
+	private final int maxBufferedPages;
+
+	private final Set<Export> exports = Collections.newSetFromMap(new ConcurrentHashMap<Export, Boolean>());
+	private final AtomicLong splits = new AtomicLong();
+	private final AtomicLong pages = new AtomicLong();
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param template
+	 *            The template reading the feed, its request limiter bounds
+	 *            the rate.
+	 * @param parallelism
+	 *            The number of ranges read at the same time.
+	 */
+	public ParallelUserExporter(GoogleAppsTemplate template, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.template = template;
+		this.pool = new ForkJoinPool(parallelism);
+		// a range starts at a character of the alphabet
+		this.initialRanges = Math.min(parallelism, ALPHABET.length());
+		this.maxBufferedPages = parallelism * BUFFERED_PAGES_PER_WORKER;
+	}
+
+	/**
+	 * Feeds all users to the handler in feed order until it asks to stop. The
+	 * workers have stopped when this method returns.
+	 * 
+	 * @throws RestClientException
+	 *             If reading a range failed or the exporter was shut down, no
+	 *             further entries are handed to the handler.
+	 */
+	public void export(GoogleAtomHandler handler) {
+		Export export = new Export(maxBufferedPages);
+		List<Range> ranges = new ArrayList<Range>(initialRanges);
+		Range previous = null;
+		for (int i = 0; i < initialRanges; i++) {
+			String to = i == initialRanges - 1 ? null : String.valueOf(ALPHABET.charAt(ALPHABET.length() * (i + 1)
+			        / initialRanges));
+			Range range = new Range(previous == null ? "" : previous.to, to);
+			if (previous != null) {
+				previous.next = range;
+			}
+			ranges.add(range);
+			previous = range;
+		}
+		// registered before the tasks are queued, shutdown fails it or the pool rejects them
+		exports.add(export);
+		try {
+			try {
+				for (Range range : ranges) {
+					pool.execute(new RangeTask(export, range));
+				}
+			} catch (RejectedExecutionException e) {
+				throw new RestClientException("The exporter was shut down", e);
+			}
+			for (Range range = ranges.get(0); range != null; range = export.awaitNext(range)) {
+				List<GoogleAtom> entries;
+				while ((entries = export.take(range)) != null) {
+					for (GoogleAtom entry : entries) {
+						if (!handler.handle(entry)) {
+							return;
+						}
+					}
+				}
+			}
+		} finally {
+			export.cancel();
+			// the workers finish their current page, so the next export does not queue behind them
+			export.awaitStopped();
+			exports.remove(export);
+		}
+	}
+
+	/**
+	 * Returns the number of times a range was split since this exporter was
+	 * created.
+	 */
+	public long getSplitCount() {
+		return splits.get();
+	}
+
+	/**
+	 * Returns the number of pages read since this exporter was created.
+	 */
+	public long getPageCount() {
+		return pages.get();
+	}
+
+	/**
+	 * Stops the workers, an export in progress fails with a
+	 * {@link RestClientException}.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+		// the queued tasks are dropped, their ranges would never be published
+		for (Export export : exports) {
+			export.fail(new RestClientException("The exporter was shut down"));
+		}
+	}
+
+	/**
+	 * Returns the key the feed sorts an entry by: its user name without the
+	 * domain, in lower case.
+	 */
+	static String getKey(GoogleAtom entry) {
+		String username = GoogleUserMapper.getUsername(entry);
+		if (username == null) {
+			return null;
+		}
+		int at = username.indexOf('@');
+		return (at < 0 ? username : username.substring(0, at)).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the key to split a range at after a page from first to last, or
+	 * <code>null</code> when there is none between last and to.
+	 * 
+	 * @param to
+	 *            The end of the range, <code>null</code> for no end.
+	 */
+	static String splitPoint(String first, String last, String to) {
+		long low = toNumber(last);
+		long high = to == null ? KEY_LIMIT : toNumber(to);
+		long span = Math.max(low - toNumber(first), 1);
+		long at = span < (high - low) / PAGES_PER_SPLIT ? low + span * PAGES_PER_SPLIT : low + (high - low) / 2;
+		if (at <= low) {
+			return null;
+		}
+		String key = toKey(at);
+		return key.compareTo(last) > 0 && (to == null || key.compareTo(to) < 0) ? key : null;
+	}
+
+	static long toNumber(String key) {
+		long number = 0;
+		for (int i = 0; i < KEY_DIGITS; i++) {
+			int digit = 0;
+			if (i < key.length()) {
+				// characters outside the alphabet count as the nearest one below
+				char c = key.charAt(i);
+				for (int d = ALPHABET.length() - 1; d >= 0; d--) {
+					if (ALPHABET.charAt(d) <= c) {
+						digit = d + 1;
+						break;
+					}
+				}
+			}
+			number = number * RADIX + digit;
+		}
+		return number;
+	}
+
+	static String toKey(long number) {
+		char[] key = new char[KEY_DIGITS];
+		int length = 0;
+		for (int i = KEY_DIGITS - 1; i >= 0; i--) {
+			int digit = (int) (number % RADIX);
+			number /= RADIX;
+			key[i] = digit == 0 ? 0 : ALPHABET.charAt(digit - 1);
+			if (digit != 0 && length == 0) {
+				length = i + 1;
+			}
+		}
+		// a zero digit ends the key, there are none before the last non-zero one
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append(key[i] == 0 ? ALPHABET.charAt(0) : key[i]);
+		}
+		return builder.toString();
+	}
+
+	private static long pow(long base, int exponent) {
+		long result = 1;
+		for (int i = 0; i < exponent; i++) {
+			result *= base;
+		}
+		return result;
+	}
+
+	/**
+	 * A range of user names with the pages read from it, linked in feed order.
+	 * Guarded by the {@link Export}.
+	 */
+	private static final class Range {
+
+		private final String from;
+		private String to;
+		private Range next;
+		private final LinkedList<List<GoogleAtom>> pages = new LinkedList<List<GoogleAtom>>();
+		private boolean done;
+
+		Range(String from, String to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * The state of a single export shared by the workers and the caller.
+	 */
+	private static final class Export {
+
+		private final int maxBufferedPages;
+		private RuntimeException failure;
+		private boolean cancelled;
+		// the range the handler reads, the pages buffered and the tasks reading
+		private Range current;
+		private int bufferedPages;
+		private int running;
+
+		Export(int maxBufferedPages) {
+			this.maxBufferedPages = maxBufferedPages;
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		/**
+		 * Registers a task reading a range.
+		 * 
+		 * @return <code>false</code> when the export has ended and the task
+		 *         must not read.
+		 */
+		synchronized boolean start() {
+			if (cancelled || failure != null) {
+				return false;
+			}
+			running++;
+			return true;
+		}
+
+		synchronized void stop() {
+			running--;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the tasks that started have stopped, after
+		 * {@link #cancel()}.
+		 */
+		synchronized void awaitStopped() {
+			boolean interrupted = false;
+			while (running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// the workers stop after their current page, keep waiting for them
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Waits, compensating the pool for the blocked worker, until the
+		 * handler is close enough for the range to read another page.
+		 * 
+		 * @return <code>false</code> when the export has ended.
+		 */
+		boolean awaitRoom(final Range range) {
+			try {
+				ForkJoinPool.managedBlock(new ManagedBlocker() {
+					@Override
+					public boolean isReleasable() {
+						return hasRoom(range);
+					}
+
+					@Override
+					public boolean block() throws InterruptedException {
+						synchronized (Export.this) {
+							while (!hasRoom(range)) {
+								Export.this.wait();
+							}
+						}
+						return true;
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RestClientException("Interrupted while exporting the users", e);
+			}
+			synchronized (this) {
+				return !cancelled && failure == null;
+			}
+		}
+
+		private synchronized boolean hasRoom(Range range) {
+			// the range the handler waits for always proceeds
+			return cancelled || failure != null || range == current || bufferedPages < maxBufferedPages;
+		}
+
+		synchronized String getTo(Range range) {
+			return range.to;
+		}
+
+		synchronized void publish(Range range, List<GoogleAtom> entries, boolean last) {
+			if (!entries.isEmpty()) {
+				range.pages.add(entries);
+				bufferedPages++;
+			}
+			range.done = last;
+			notifyAll();
+		}
+
+		synchronized void fail(RuntimeException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Gives the range up to the given key to the current reader and
+		 * returns the rest as a new range following it.
+		 */
+		synchronized Range split(Range range, String at) {
+			Range rest = new Range(at, range.to);
+			rest.next = range.next;
+			range.next = rest;
+			range.to = at;
+			return rest;
+		}
+
+		/**
+		 * Returns the next page of the range, or <code>null</code> when the
+		 * range has been read completely.
+		 */
+		synchronized List<GoogleAtom> take(Range range) {
+			if (current != range) {
+				current = range;
+				notifyAll();
+			}
+			while (range.pages.isEmpty() && !range.done) {
+				await();
+			}
+			List<GoogleAtom> page = range.pages.poll();
+			if (page != null) {
+				bufferedPages--;
+				notifyAll();
+			}
+			return page;
+		}
+
+		synchronized Range awaitNext(Range range) {
+			return range.next;
+		}
+
+		private void await() {
+			if (failure != null) {
+				throw failure;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RestClientException("Interrupted while exporting the users", e);
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Export export;
+		private final Range range;
+
+		RangeTask(Export export, Range range) {
+			this.export = export;
+			this.range = range;
+		}
+
+		@Override
+		protected void compute() {
+			if (!export.start()) {
+				return;
+			}
+			try {
+				read();
+			} catch (RuntimeException e) {
+				export.fail(e);
+			} finally {
+				export.stop();
+			}
+		}
+
+		private void read() {
+			String next = null;
+			while (export.awaitRoom(range)) {
+				GoogleAtomFeedPage page = next == null ? template.getUserPage(range.from) : template
+				        .getFeedPage(next);
+				pages.incrementAndGet();
+				String to = export.getTo(range);
+				List<GoogleAtom> entries = new ArrayList<GoogleAtom>(page.getEntries().size());
+				String first = null;
+				String last = null;
+				boolean beyond = false;
+				for (GoogleAtom entry : page.getEntries()) {
+					String key = getKey(entry);
+					if (key != null && to != null && key.compareTo(to) >= 0) {
+						beyond = true;
+						break;
+					}
+					entries.add(entry);
+					if (key != null) {
+						first = first == null ? key : first;
+						last = key;
+					}
+				}
+				if (beyond || page.getNext() == null) {
+					export.publish(range, entries, true);
+					return;
+				}
+				String at = last == null ? null : splitPoint(first, last, to);
+				if (at != null && getSurplusQueuedTaskCount() <= 0) {
+					// more than a page in this range and no work queued, share it
+					splits.incrementAndGet();
+					new RangeTask(export, export.split(range, at)).fork();
+				}
+				export.publish(range, entries, false);
+				next = page.getNext();
+			}
+		}
+	}
+}
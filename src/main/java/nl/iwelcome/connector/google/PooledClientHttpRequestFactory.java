@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.CommonsClientHttpRequestFactory;
+
+/**
+ * A {@link ClientHttpRequestFactory} keeping HTTP connections alive in a pool
+ * shared by all threads. Decorators like {@link TracingClientHttpRequestFactory}
+ * can be put on top of it. Typically used like this:
+ * 
+ * <pre>
+ * PooledClientHttpRequestFactory factory = new PooledClientHttpRequestFactory();
+ * factory.setMaxConnectionsPerRoute(20);
+ * factory.setReadTimeout(30000);
+ * new GoogleAppsTemplate(email, password, loginUrl, baseUrl, customerIdUrl, moveToGroupUrl, factory, false);
+ * </pre>
+ */
+public class PooledClientHttpRequestFactory implements ClientHttpRequestFactory, DisposableBean {
+
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 50;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	private final MultiThreadedHttpConnectionManager connectionManager;
+	private final HttpClient httpClient;
+	private final CommonsClientHttpRequestFactory factory;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicInteger inUse = new AtomicInteger();
+
+	private IdleConnectionTimeoutThread idleConnectionEvictor;
+
+	public PooledClientHttpRequestFactory() {
+		connectionManager = new MultiThreadedHttpConnectionManager();
+		httpClient = new HttpClient(connectionManager);
+		factory = new CommonsClientHttpRequestFactory(httpClient);
+		setMaxTotalConnections(DEFAULT_MAX_TOTAL_CONNECTIONS);
+		setMaxConnectionsPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+		setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+		setReadTimeout(DEFAULT_READ_TIMEOUT);
+		setIdleTimeout(DEFAULT_IDLE_TIMEOUT);
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		requests.incrementAndGet();
+		return new CountingClientHttpRequest(factory.createRequest(uri, httpMethod));
+	}
+
+	/**
+	 * Sets the maximum number of connections over all hosts.
+	 */
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		params().setMaxTotalConnections(maxTotalConnections);
+	}
+
+	/**
+	 * Sets the maximum number of connections to a single host.
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		params().setDefaultMaxConnectionsPerHost(maxConnectionsPerRoute);
+	}
+
+	/**
+	 * Sets the time in milliseconds to wait for a connection to be
+	 * established.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		params().setConnectionTimeout(connectTimeout);
+	}
+
+	/**
+	 * Sets the time in milliseconds to wait for data on an open connection.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		params().setSoTimeout(readTimeout);
+	}
+
+	/**
+	 * Sets the time in milliseconds a connection may stay unused in the pool
+	 * before it is closed. A value of 0 disables idle eviction.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		if (idleConnectionEvictor != null) {
+			idleConnectionEvictor.shutdown();
+			idleConnectionEvictor = null;
+		}
+		if (idleTimeout > 0) {
+			idleConnectionEvictor = new IdleConnectionTimeoutThread();
+			idleConnectionEvictor.setName("google-idle-connection-evictor");
+			idleConnectionEvictor.setConnectionTimeout(idleTimeout);
+			idleConnectionEvictor.setTimeoutInterval(Math.max(idleTimeout / 2, 1000));
+			idleConnectionEvictor.addConnectionManager(connectionManager);
+			idleConnectionEvictor.start();
+		}
+	}
+
+	public int getMaxTotalConnections() {
+		return params().getMaxTotalConnections();
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return params().getDefaultMaxConnectionsPerHost();
+	}
+
+	/**
+	 * Returns the number of open connections, in use or idle.
+	 */
+	public int getConnectionsInPool() {
+		return connectionManager.getConnectionsInPool();
+	}
+
+	/**
+	 * Returns the number of requests executed whose response has not been
+	 * closed yet, each holding a connection of the pool.
+	 */
+	public int getConnectionsInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * Returns the number of open connections to the host of the given URI.
+	 */
+	public int getConnectionsInPool(URI uri) {
+		return connectionManager.getConnectionsInPool(hostConfiguration(uri));
+	}
+
+	/**
+	 * Returns the number of requests created since construction.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Closes all connections and stops the idle connection eviction.
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (idleConnectionEvictor != null) {
+			idleConnectionEvictor.shutdown();
+			idleConnectionEvictor = null;
+		}
+		connectionManager.shutdown();
+	}
+
+	private HttpConnectionManagerParams params() {
+		return connectionManager.getParams();
+	}
+
+	private static HostConfiguration hostConfiguration(URI uri) {
+		HostConfiguration hostConfiguration = new HostConfiguration();
+		hostConfiguration.setHost(uri.getHost(), uri.getPort(), uri.getScheme());
+		return hostConfiguration;
+	}
+
+	@Override
+	public String toString() {
+		return "PooledClientHttpRequestFactory [connectionsInPool=" + getConnectionsInPool() + ", connectionsInUse="
+		        + getConnectionsInUse() + ", maxTotalConnections=" + getMaxTotalConnections()
+		        + ", maxConnectionsPerRoute=" + getMaxConnectionsPerRoute() + "]";
+	}
+
+	/**
+	 * Counts a connection in use from the execution of the request until its
+	 * response is closed.
+	 */
+	private class CountingClientHttpRequest implements ClientHttpRequest {
+
+		private final ClientHttpRequest decorated;
+
+		public CountingClientHttpRequest(ClientHttpRequest request) {
+			this.decorated = request;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return decorated.getMethod();
+		}
+
+		@Override
+		public URI getURI() {
+			return decorated.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return decorated.getHeaders();
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			return decorated.getBody();
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			inUse.incrementAndGet();
+			boolean executed = false;
+			try {
+				ClientHttpResponse response = new CountingClientHttpResponse(decorated.execute());
+				executed = true;
+				return response;
+			} finally {
+				if (!executed) {
+					// the connection went back to the pool on the failure
+					inUse.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	private class CountingClientHttpResponse implements ClientHttpResponse {
+
+		private final ClientHttpResponse decorated;
+		private boolean closed;
+
+		public CountingClientHttpResponse(ClientHttpResponse response) {
+			this.decorated = response;
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return decorated.getStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return decorated.getStatusText();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return decorated.getHeaders();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			return decorated.getBody();
+		}
+
+		@Override
+		public void close() {
+			try {
+				decorated.close();
+			} finally {
+				if (!closed) {
+					closed = true;
+					inUse.decrementAndGet();
+				}
+			}
+		}
+	}
+}
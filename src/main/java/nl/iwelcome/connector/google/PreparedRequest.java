@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.util.UriTemplate;
+
+/**
+ * A request of which the method, URI template, headers and expected type are
+ * fixed up front. Instances are immutable and can be shared by all threads;
+ * only the URI variables and the body are bound per call. Typically created
+ * once like this:
+ * 
+ * <pre>
+ * PreparedRequest&lt;byte[]&gt; getUser = RestInvoker.prepareGetTo(baseUrl + &quot;{name}&quot;)
+ *            .expecting(byte[].class)
+ *            .prepare();
+ * </pre>
+ * 
+ * and executed many times:
+ * 
+ * <pre>
+ * byte[] user = getUser.execute(operations, &quot;liz&quot;);
+ * </pre>
+ */
+public class PreparedRequest<T> {
+
+	private final HttpMethod method;
+	private final UriTemplate uriTemplate;
+	private final HttpHeaders headers;
+	private final Class<T> type;
+
+	PreparedRequest(HttpMethod method, String uriTemplate, MediaType contentType, Class<T> type) {
+		this.method = method;
+		this.uriTemplate = new UriTemplate(uriTemplate);
+		HttpHeaders headers = new HttpHeaders();
+		if (contentType != null) {
+			headers.setContentType(contentType);
+		}
+		this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+		this.type = type;
+	}
+
+	/**
+	 * Executes the request without a body.
+	 */
+	public T execute(RestOperations operations, Object... uriVariables) {
+		return send(operations, null, uriVariables);
+	}
+
+	/**
+	 * Executes the request without a body, binding the URI variables by name.
+	 */
+	public T execute(RestOperations operations, Map<String, ?> uriVariables) {
+		return send(operations, null, uriTemplate.expand(uriVariables));
+	}
+
+	/**
+	 * Executes the request with the given body.
+	 */
+	public T send(RestOperations operations, Object body, Object... uriVariables) {
+		return send(operations, body, expand(uriVariables));
+	}
+
+	/**
+	 * Expands the URI template, typically to use the result as a cache or
+	 * deduplication key.
+	 */
+	public URI expand(Object... uriVariables) {
+		return uriTemplate.expand(uriVariables);
+	}
+
+	private T send(RestOperations operations, Object body, URI uri) {
+		switch (method) {
+		case GET: {
+			return operations.getForObject(uri, type);
+		}
+		case POST: {
+			return operations.postForObject(uri, body, type);
+		}
+		case PUT: {
+			return operations.exchange(uri, HttpMethod.PUT, new HttpEntity<Object>(body, headers), type).getBody();
+		}
+		default: {
+			throw new UnsupportedOperationException();
+		}
+		}
+	}
+
+	public HttpMethod getMethod() {
+		return method;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return "PreparedRequest [method=" + method + ", uriTemplate=" + uriTemplate + ", type=" + type.getName() + "]";
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * Copies the representations read from Google that are handed to more than
+ * one caller, so no caller sees the changes of another.
+ */
+final class Representations {
+
+	private Representations() {
+	}
+
+	/**
+	 * Indicates if values of the type are immutable or can be copied by
+	 * {@link #copy(Object)}.
+	 */
+	static boolean isCopyable(Class<?> type) {
+		return type == byte[].class || type == String.class || type == GoogleAtom.class;
+	}
+
+	/**
+	 * Returns a copy of a byte array or an entry, other values as they are.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T copy(T value) {
+		if (value instanceof byte[]) {
+			return (T) ((byte[]) value).clone();
+		}
+		if (value instanceof GoogleAtom) {
+			return (T) copy((GoogleAtom) value);
+		}
+		return value;
+	}
+
+	private static GoogleAtom copy(GoogleAtom entry) {
+		GoogleAtom copy = new GoogleAtom();
+		copy.setId(entry.getId());
+		GoogleProperty[] properties = entry.getProperties();
+		if (properties != null) {
+			GoogleProperty[] copied = new GoogleProperty[properties.length];
+			for (int i = 0; i < properties.length; i++) {
+				copied[i] = properties[i] == null ? null : new GoogleProperty(properties[i].getName(),
+				        properties[i].getValue());
+			}
+			copy.setProperties(copied);
+		}
+		return copy;
+	}
+}
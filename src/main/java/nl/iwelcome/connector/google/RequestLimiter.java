@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import nl.iwelcome.connector.google.GoogleOperation.Kind;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Keeps the calls of a template within the Provisioning API quota. Reads and
+ * writes each have their own token bucket, capping the rate, and their own
+ * {@link AdaptiveConcurrencyLimiter}, which grows while calls succeed and
+ * backs off when Google throttles. Typically used like this:
+ * 
+ * <pre>
+ * RequestLimiter limiter = new RequestLimiter();
+ * limiter.configure(Kind.WRITE, 5, 10, 1, 20);
+ * template.setRequestLimiter(limiter);
+ * </pre>
+ */
+public class RequestLimiter {
+
+	public static final double DEFAULT_RATE_PER_SECOND = 10;
+	public static final int DEFAULT_BURST = 20;
+	public static final int DEFAULT_MIN_CONCURRENCY = 1;
+	public static final int DEFAULT_MAX_CONCURRENCY = 50;
+
+	private final Map<Kind, TokenBucket> buckets = new EnumMap<Kind, TokenBucket>(Kind.class);
+	private final Map<Kind, AdaptiveConcurrencyLimiter> limiters = new EnumMap<Kind, AdaptiveConcurrencyLimiter>(
+	        Kind.class);
+
+	public RequestLimiter() {
+		for (Kind kind : Kind.values()) {
+			configure(kind, DEFAULT_RATE_PER_SECOND, DEFAULT_BURST, DEFAULT_MIN_CONCURRENCY,
+			        DEFAULT_MAX_CONCURRENCY);
+		}
+	}
+
+	/**
+	 * Replaces the limits of one kind of operation. Meant to be called before
+	 * the limiter is used.
+	 */
+	public void configure(Kind kind, double ratePerSecond, int burst, int minConcurrency, int maxConcurrency) {
+		buckets.put(kind, new TokenBucket(ratePerSecond, burst));
+		int initialConcurrency = Math.max(minConcurrency, maxConcurrency / 2);
+		limiters.put(kind, new AdaptiveConcurrencyLimiter(initialConcurrency, minConcurrency, maxConcurrency));
+	}
+
+	/**
+	 * Waits until a call of the given operation may start. Every call to this
+	 * method that returns normally must be followed by exactly one call to
+	 * {@link #release}.
+	 * 
+	 * @return The ticket of the call, to pass to {@link #release}.
+	 */
+	public long acquire(GoogleOperation operation) {
+		AdaptiveConcurrencyLimiter limiter = limiters.get(operation.getKind());
+		try {
+			buckets.get(operation.getKind()).acquire();
+			return limiter.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while waiting for a request permit", e);
+		}
+	}
+
+	/**
+	 * Ends a call of the given operation.
+	 * 
+	 * @param ticket
+	 *            The ticket {@link #acquire} returned for the call.
+	 * @param failure
+	 *            The exception the call ended with, or <code>null</code>.
+	 */
+	public void release(GoogleOperation operation, long ticket, RuntimeException failure) {
+		AdaptiveConcurrencyLimiter limiter = limiters.get(operation.getKind());
+		if (failure == null) {
+			limiter.onSuccess();
+		} else if (isThrottled(failure)) {
+			limiter.onThrottled(ticket);
+		} else {
+			limiter.onIgnored();
+		}
+	}
+
+	/**
+	 * Returns the current concurrency limit of a kind of operation.
+	 */
+	public int getConcurrencyLimit(Kind kind) {
+		return limiters.get(kind).getLimit();
+	}
+
+	/**
+	 * Returns the number of calls of a kind of operation executing right now.
+	 */
+	public int getInFlight(Kind kind) {
+		return limiters.get(kind).getInFlight();
+	}
+
+	public double getRatePerSecond(Kind kind) {
+		return buckets.get(kind).getRatePerSecond();
+	}
+
+	/**
+	 * Indicates if an exception means Google throttled the call: a 503, or a
+	 * 403 reporting an exceeded quota or rate limit.
+	 */
+	public static boolean isThrottled(RuntimeException failure) {
+		if (!(failure instanceof HttpStatusCodeException)) {
+			return false;
+		}
+		HttpStatusCodeException exception = (HttpStatusCodeException) failure;
+		if (exception.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE) {
+			return true;
+		}
+		if (exception.getStatusCode() == HttpStatus.FORBIDDEN) {
+			String body = exception.getResponseBodyAsString().toLowerCase(Locale.ENGLISH);
+			return body.contains("quota") || body.contains("limit exceeded");
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("RequestLimiter [");
+		for (Kind kind : Kind.values()) {
+			builder.append(kind).append("=(rate=").append(getRatePerSecond(kind)).append(", limit=")
+			        .append(getConcurrencyLimit(kind)).append(", inFlight=").append(getInFlight(kind)).append(") ");
+		}
+		return builder.append(']').toString();
+	}
+}
@@ -39,7 +39,9 @@ import org.springframework.web.client.RestTemplate;
  * </pre>
  * <p/>
  * <p>
- * For now, mostly useful for doing POSTs.
+ * For now, mostly useful for doing POSTs. Requests executed often should be
+ * turned into a {@link PreparedRequest} once with
+ * {@link TypedRestInvoker#prepare()}.
  * </p>
  */
 public class RestInvoker {
@@ -49,7 +51,7 @@ public class RestInvoker {
 	private final RestOperations operations;
 
 	private RestInvoker(HttpMethod method, String uri) {
-		this(method, uri, new RestTemplate());
+		this(method, uri, null);
 	}
 
 	private RestInvoker(HttpMethod method, String uri, RestOperations operations) {
@@ -103,10 +105,24 @@ public class RestInvoker {
 			return this;
 		}
 
+		/**
+		 * Turns this invoker into a request that can be executed many times
+		 * against any {@link RestOperations}. The parameters and object given
+		 * so far are not part of the result.
+		 */
+		public PreparedRequest<T> prepare() {
+			MediaType contentType = method == HttpMethod.PUT ? MediaType.APPLICATION_ATOM_XML : null;
+			return new PreparedRequest<T>(method, uri, contentType, type);
+		}
+
 		/**
 		 * Executes the request.
 		 */
 		public T execute() {
+			RestOperations operations = RestInvoker.this.operations;
+			if (operations == null) {
+				operations = DefaultOperationsHolder.OPERATIONS;
+			}
 			switch (method) {
 			case POST: {
 				return operations.postForObject(uri, parameters, type);
@@ -131,4 +147,12 @@ public class RestInvoker {
 			return this;
 		}
 	}
+
+	/**
+	 * The operations used when {@link RestInvoker#using(RestOperations)} was
+	 * not called, created once on first use.
+	 */
+	private static class DefaultOperationsHolder {
+		private static final RestOperations OPERATIONS = new RestTemplate();
+	}
 }
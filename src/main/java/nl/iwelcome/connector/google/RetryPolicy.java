@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Decides if and when a failed call is tried again. Server errors, I/O errors
+ * and throttled calls are retried with an exponential backoff; the actual
+ * delay is drawn at random below the backoff, so that clients failing at the
+ * same moment do not retry at the same moment.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_INITIAL_BACKOFF = 200;
+	public static final long DEFAULT_MAX_BACKOFF = TimeUnit.SECONDS.toMillis(10);
+
+	private final int maxAttempts;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final Random random = new Random();
+
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param maxAttempts
+	 *            The number of attempts including the first one.
+	 * @param initialBackoff
+	 *            The backoff in milliseconds after the first attempt.
+	 * @param maxBackoff
+	 *            The highest backoff in milliseconds.
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Indicates if a call that failed with the given exception on the given
+	 * attempt should be tried again.
+	 */
+	public boolean shouldRetry(RuntimeException failure, int attempt) {
+		if (!isRetryable(failure)) {
+			return false;
+		}
+		if (attempt >= maxAttempts) {
+			exhausted.incrementAndGet();
+			return false;
+		}
+		retries.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the delay in milliseconds before the attempt following the given
+	 * one.
+	 */
+	public long getBackoff(int attempt) {
+		long backoff = initialBackoff << Math.min(attempt - 1, 30);
+		long ceiling = Math.max(1, Math.min(maxBackoff, backoff));
+		synchronized (random) {
+			return (long) (random.nextDouble() * ceiling);
+		}
+	}
+
+	protected boolean isRetryable(RuntimeException failure) {
+		return failure instanceof HttpServerErrorException || failure instanceof ResourceAccessException
+		        || RequestLimiter.isThrottled(failure);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns the number of retries granted.
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns the number of calls that failed after the last attempt.
+	 */
+	public long getExhaustedCount() {
+		return exhausted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy [maxAttempts=" + maxAttempts + ", initialBackoff=" + initialBackoff + ", maxBackoff="
+		        + maxBackoff + ", retries=" + getRetryCount() + ", exhausted=" + getExhaustedCount() + "]";
+	}
+}
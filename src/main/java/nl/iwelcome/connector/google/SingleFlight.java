@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller
+ * performs the call in its own thread, callers arriving while it runs wait for
+ * its outcome. Nothing is kept once the call completes, but a joining caller
+ * may receive the result of a call that started before its own; callers that
+ * must not see a result older than a change they depend on put a generation
+ * of that change in the key. Instances are thread-safe.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * Returns the outcome of the call in flight for the key, or performs the
+	 * call when there is none.
+	 */
+	public V execute(K key, Callable<V> call) {
+		FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> inFlight = calls.putIfAbsent(key, task);
+		if (inFlight != null) {
+			sharedCount.incrementAndGet();
+			return share(await(inFlight));
+		}
+		try {
+			task.run();
+		} finally {
+			calls.remove(key, task);
+		}
+		return await(task);
+	}
+
+	/**
+	 * Returns the value handed to a caller that joined a call of another
+	 * thread, by default the value itself. Override to hand out copies of
+	 * mutable values.
+	 */
+	protected V share(V value) {
+		return value;
+	}
+
+	/**
+	 * Returns the number of calls that joined a call already in flight.
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	private static <V> V await(FutureTask<V> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					// the call runs in another caller's thread, keep waiting for it
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RestClientException("Shared call failed", cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
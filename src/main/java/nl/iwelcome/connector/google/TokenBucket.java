@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket refilled at a fixed rate. Callers that find the bucket empty
+ * reserve the next free token and sleep until it is due, so waiting callers
+ * are served in order without holding the lock while they sleep.
+ */
+public class TokenBucket {
+
+	private final double ratePerSecond;
+	private final double capacity;
+
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param ratePerSecond
+	 *            The number of tokens added per second.
+	 * @param capacity
+	 *            The maximum number of tokens stored, the size of a burst.
+	 */
+	public TokenBucket(double ratePerSecond, int capacity) {
+		if (ratePerSecond <= 0 || capacity < 1) {
+			throw new IllegalArgumentException("rate and capacity must be positive");
+		}
+		this.ratePerSecond = ratePerSecond;
+		this.capacity = capacity;
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Takes a token, waiting until one is available.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes a token when one is available right now.
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	/**
+	 * Returns the tokens available, negative when callers are waiting.
+	 */
+	public synchronized double getAvailableTokens() {
+		refill();
+		return tokens;
+	}
+
+	private synchronized long reserve() {
+		refill();
+		tokens -= 1;
+		if (tokens >= 0) {
+			return 0;
+		}
+		return (long) (-tokens / ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+		refilledAt = now;
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What was traced of a single request: its headers with secrets redacted, the
+ * start of its body and the status of the response. Instances are immutable.
+ */
+public class TraceRecord {
+
+	private final long timestamp;
+	private final String method;
+	private final URI uri;
+	private final Map<String, List<String>> requestHeaders;
+	private final byte[] body;
+	private final long bodyLength;
+	private final int status;
+	private final String contentType;
+	private final long durationNanos;
+	private final String error;
+
+	public TraceRecord(long timestamp, String method, URI uri, Map<String, List<String>> requestHeaders,
+	        byte[] body, long bodyLength, int status, String contentType, long durationNanos, String error) {
+		this.timestamp = timestamp;
+		this.method = method;
+		this.uri = uri;
+		this.requestHeaders = Collections.unmodifiableMap(requestHeaders);
+		this.body = body;
+		this.bodyLength = bodyLength;
+		this.status = status;
+		this.contentType = contentType;
+		this.durationNanos = durationNanos;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the time the request was sent, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public URI getUri() {
+		return uri;
+	}
+
+	public Map<String, List<String>> getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	/**
+	 * Returns the captured start of the request body, possibly shorter than
+	 * {@link #getBodyLength()}.
+	 */
+	public byte[] getBody() {
+		return body.clone();
+	}
+
+	public long getBodyLength() {
+		return bodyLength;
+	}
+
+	/**
+	 * Returns the status code of the response, or -1 when none was received.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * Returns the message of the exception that ended the request, or
+	 * <code>null</code>.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(128 + body.length);
+		builder.append(method).append(' ').append(uri);
+		if (status >= 0) {
+			builder.append(" -> ").append(status);
+		}
+		if (error != null) {
+			builder.append(" failed: ").append(error);
+		}
+		builder.append(" in ").append(durationNanos / 1000000).append(" ms");
+		if (contentType != null) {
+			builder.append(" (").append(contentType).append(')');
+		}
+		builder.append(", request headers ").append(requestHeaders);
+		if (bodyLength > 0) {
+			builder.append(", body of ").append(bodyLength).append(" bytes: ");
+			for (byte b : body) {
+				builder.append(b >= 0x20 && b < 0x7f ? (char) b : '.');
+			}
+			if (body.length < bodyLength) {
+				builder.append("...");
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring of trace records, filled by any number of request threads and
+ * drained by a single writer thread. Neither side takes a lock; a record that
+ * does not fit is dropped and counted, so a request thread never waits.
+ */
+public class TraceRingBuffer {
+
+	private final AtomicReferenceArray<TraceRecord> slots;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            The number of records held, rounded up to a power of two.
+	 */
+	public TraceRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		slots = new AtomicReferenceArray<TraceRecord>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds a record, or drops it when the ring is full.
+	 * 
+	 * @return <code>false</code> if the record was dropped.
+	 */
+	public boolean offer(TraceRecord record) {
+		while (true) {
+			long position = tail.get();
+			if (position - head.get() >= slots.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (tail.compareAndSet(position, position + 1)) {
+				slots.lazySet((int) position & mask, record);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest record, or returns <code>null</code> when there is
+	 * none yet. Only to be called by the single consumer.
+	 */
+	public TraceRecord poll() {
+		long position = head.get();
+		int index = (int) position & mask;
+		TraceRecord record = slots.get(index);
+		if (record == null) {
+			// empty, or claimed by a producer that has not stored it yet
+			return null;
+		}
+		slots.lazySet(index, null);
+		head.lazySet(position + 1);
+		return record;
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Returns the number of records dropped because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
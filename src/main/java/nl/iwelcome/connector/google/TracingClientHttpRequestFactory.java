@@ -16,40 +16,211 @@
  */
 package nl.iwelcome.connector.google;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.apache.commons.io.HexDump;
-import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpResponse;
 
+/**
+ * Traces a sample of the requests. For a traced request the headers, with
+ * credentials redacted, the first bytes of the body and the status of the
+ * response are recorded and handed to a background thread through a
+ * {@link TraceRingBuffer}; the request thread never writes or waits. Requests
+ * that are not sampled are not wrapped at all. By default every request is
+ * traced to the commons-logging log of this class.
+ */
 public class TracingClientHttpRequestFactory implements ClientHttpRequestFactory {
 
+	public static final int DEFAULT_MAX_BODY_BYTES = 1024;
+	public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+	private static final Log LOG = LogFactory.getLog(TracingClientHttpRequestFactory.class);
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String REDACTED = "[redacted]";
+	private static final Set<String> DEFAULT_REDACTED_HEADERS = Collections.unmodifiableSet(new TreeSet<String>(
+	        Arrays.asList("authorization", "cookie", "set-cookie", "proxy-authorization")));
+	// the ClientLogin form carries the password
+	private static final Pattern PASSWORD_PARAMETER = Pattern.compile("(Passwd=)[^&]*");
+
 	private final ClientHttpRequestFactory factory;
+	private final TraceSink sink;
+	private final TraceRingBuffer buffer;
+	private final Thread writer;
+
+	private volatile double sampleRate = 1.0;
+	private volatile int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+	private volatile Set<String> redactedHeaders = DEFAULT_REDACTED_HEADERS;
+	private volatile boolean running = true;
 
 	public TracingClientHttpRequestFactory(ClientHttpRequestFactory factory) {
+		this(factory, new TraceSink() {
+			@Override
+			public void write(TraceRecord record) {
+				LOG.info(record);
+			}
+		}, DEFAULT_BUFFER_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new instance.
+	 * 
+	 * @param factory
+	 *            The factory creating the actual requests.
+	 * @param sink
+	 *            Receives the records on the background thread.
+	 * @param bufferCapacity
+	 *            The number of records waiting for the sink, further records
+	 *            are dropped.
+	 */
+	public TracingClientHttpRequestFactory(ClientHttpRequestFactory factory, TraceSink sink, int bufferCapacity) {
 		this.factory = factory;
+		this.sink = sink;
+		this.buffer = new TraceRingBuffer(bufferCapacity);
+		this.writer = new NamedThreadFactory("google-apps-trace").newThread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+		writer.start();
 	}
 
 	@Override
 	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
-		return new LoggingClientHttpRequest(factory.createRequest(uri, httpMethod));
+		ClientHttpRequest request = factory.createRequest(uri, httpMethod);
+		double rate = sampleRate;
+		if (!running || rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+			return request;
+		}
+		return new TracingClientHttpRequest(request);
+	}
+
+	/**
+	 * Sets the fraction of the requests traced, between 0 and 1.
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Sets the number of bytes of a request body kept in its record.
+	 */
+	public void setMaxBodyBytes(int maxBodyBytes) {
+		if (maxBodyBytes < 0) {
+			throw new IllegalArgumentException("maxBodyBytes must not be negative");
+		}
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	public int getMaxBodyBytes() {
+		return maxBodyBytes;
+	}
+
+	/**
+	 * Sets the names of the headers of which the values are never recorded,
+	 * in addition to Authorization, Cookie, Set-Cookie and
+	 * Proxy-Authorization.
+	 */
+	public void setRedactedHeaders(Set<String> headers) {
+		Set<String> names = new TreeSet<String>(DEFAULT_REDACTED_HEADERS);
+		for (String header : headers) {
+			names.add(header.toLowerCase(Locale.ENGLISH));
+		}
+		this.redactedHeaders = Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Returns the number of records dropped because the writer fell behind.
+	 */
+	public long getDroppedCount() {
+		return buffer.getDroppedCount();
+	}
+
+	/**
+	 * Stops tracing; the records already buffered are still written.
+	 */
+	public void destroy() {
+		running = false;
+		LockSupport.unpark(writer);
+	}
+
+	private void drain() {
+		while (true) {
+			TraceRecord record = buffer.poll();
+			if (record != null) {
+				try {
+					sink.write(record);
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to write a trace record", e);
+				}
+			} else if (!running) {
+				return;
+			} else {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+		}
+	}
+
+	private Map<String, List<String>> redact(HttpHeaders headers) {
+		Set<String> redacted = redactedHeaders;
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (redacted.contains(entry.getKey().toLowerCase(Locale.ENGLISH))) {
+				result.put(entry.getKey(), Collections.singletonList(REDACTED));
+			} else {
+				result.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+			}
+		}
+		return result;
+	}
+
+	private static byte[] redactBody(byte[] body, MediaType contentType) {
+		if (body.length == 0 || contentType == null
+		        || !MediaType.APPLICATION_FORM_URLENCODED.includes(contentType)) {
+			return body;
+		}
+		Matcher matcher = PASSWORD_PARAMETER.matcher(new String(body, 0, body.length, ISO_8859_1));
+		return matcher.replaceAll("$1" + REDACTED).getBytes(ISO_8859_1);
 	}
 
-	private static class LoggingClientHttpRequest implements ClientHttpRequest {
+	private class TracingClientHttpRequest implements ClientHttpRequest {
 
 		private final ClientHttpRequest decorated;
-		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private CapturingOutputStream body;
 
-		public LoggingClientHttpRequest(ClientHttpRequest request) {
+		public TracingClientHttpRequest(ClientHttpRequest request) {
 			decorated = request;
 		}
 
@@ -65,20 +236,32 @@ public class TracingClientHttpRequestFactory implements ClientHttpRequestFactory
 
 		@Override
 		public ClientHttpResponse execute() throws IOException {
-			for (Map.Entry<String, List<String>> entry : decorated.getHeaders().entrySet()) {
-				System.err.println(entry.getKey() + ": " + entry.getValue());
+			long timestamp = System.currentTimeMillis();
+			long start = System.nanoTime();
+			Map<String, List<String>> headers = redact(decorated.getHeaders());
+			byte[] captured = body == null ? new byte[0] : redactBody(body.getCaptured(),
+			        decorated.getHeaders().getContentType());
+			long bodyLength = body == null ? 0 : body.getCount();
+			try {
+				ClientHttpResponse response = decorated.execute();
+				MediaType contentType = response.getHeaders().getContentType();
+				buffer.offer(new TraceRecord(timestamp, getMethod().name(), getURI(), headers, captured, bodyLength,
+				        response.getStatusCode().value(), contentType == null ? null : contentType.toString(),
+				        System.nanoTime() - start, null));
+				return response;
+			} catch (IOException e) {
+				buffer.offer(new TraceRecord(timestamp, getMethod().name(), getURI(), headers, captured, bodyLength,
+				        -1, null, System.nanoTime() - start, e.toString()));
+				throw e;
 			}
-			if (body.size() != 0) {
-				HexDump.dump(body.toByteArray(), 0, System.err, 0);
-			}
-			ClientHttpResponse response = decorated.execute();
-			System.err.println(response.getHeaders().getContentType());
-			return response;
 		}
 
 		@Override
 		public OutputStream getBody() throws IOException {
-			return new TeeOutputStream(decorated.getBody(), body);
+			if (body == null) {
+				body = new CapturingOutputStream(decorated.getBody(), maxBodyBytes);
+			}
+			return body;
 		}
 
 		@Override
@@ -87,4 +270,54 @@ public class TracingClientHttpRequestFactory implements ClientHttpRequestFactory
 		}
 	}
 
+	/**
+	 * Passes everything written on, keeping a copy of the first bytes.
+	 */
+	private static class CapturingOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] captured;
+		private long count;
+
+		CapturingOutputStream(OutputStream out, int limit) {
+			this.out = out;
+			this.captured = new byte[limit];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (count < captured.length) {
+				captured[(int) count] = (byte) b;
+			}
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (count < captured.length) {
+				System.arraycopy(b, off, captured, (int) count, (int) Math.min(len, captured.length - count));
+			}
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		byte[] getCaptured() {
+			return Arrays.copyOf(captured, (int) Math.min(count, captured.length));
+		}
+	}
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently read user entries for a limited time. When full, the least
+ * recently used entry is evicted. User names are compared ignoring case, as
+ * Google does. Instances are thread-safe.
+ */
+public class UserCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+	public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.SECONDS.toMillis(30);
+
+	private final int maxSize;
+	private final long timeToLive;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public UserCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of users kept.
+	 * @param timeToLive
+	 *            The time in milliseconds a user is served from the cache.
+	 */
+	public UserCache(final int maxSize, long timeToLive) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UserCache.Entry> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns a copy of the cached entry, or <code>null</code> when the user
+	 * is not cached or has expired.
+	 */
+	public byte[] get(String name) {
+		String key = key(name);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired(timeToLive)) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value.clone();
+	}
+
+	/**
+	 * Returns a stamp to pass to {@link #put(String, byte[], long)}, taken
+	 * before the user is read from Google.
+	 */
+	public long getStamp() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Caches a user read from Google, unless any user was invalidated since
+	 * the stamp was taken; the value read may then predate the change.
+	 */
+	public void put(String name, byte[] value, long stamp) {
+		if (value == null) {
+			return;
+		}
+		Entry entry = new Entry(value.clone());
+		synchronized (entries) {
+			if (invalidations.get() == stamp) {
+				entries.put(key(name), entry);
+			}
+		}
+	}
+
+	/**
+	 * Drops a user, called after the user has been changed.
+	 */
+	public void invalidate(String name) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.remove(key(name));
+		}
+	}
+
+	/**
+	 * Drops all users.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static final class Entry {
+
+		private final byte[] value;
+		private final long cachedAt = System.currentTimeMillis();
+
+		Entry(byte[] value) {
+			this.value = value;
+		}
+
+		boolean isExpired(long timeToLive) {
+			return System.currentTimeMillis() - cachedAt >= timeToLive;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+/**
+ * A content hash per user name, as seen by the last synchronization, together
+ * with the generation of that synchronization. Snapshots are stored in a file
+ * that is replaced atomically, so a failed synchronization leaves the previous
+ * snapshot in place. Instances are not thread-safe.
+ */
+public class UserSnapshot {
+
+	private static final int MAGIC = 0x47415353;
+	private static final int VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+	private static final Comparator<GoogleProperty> BY_NAME = new Comparator<GoogleProperty>() {
+		@Override
+		public int compare(GoogleProperty left, GoogleProperty right) {
+			return String.valueOf(left.getName()).compareTo(String.valueOf(right.getName()));
+		}
+	};
+
+	private final long generation;
+	private final Map<String, Long> hashes;
+
+	/**
+	 * Constructs an empty snapshot of generation 0.
+	 */
+	public UserSnapshot() {
+		this(0, new HashMap<String, Long>());
+	}
+
+	public UserSnapshot(long generation, Map<String, Long> hashes) {
+		this.generation = generation;
+		this.hashes = hashes;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the hashes by user name, the map may be changed by the caller.
+	 */
+	public Map<String, Long> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * Returns a hash of the id and the properties of an entry, independent of
+	 * the order of the properties.
+	 */
+	public static long hash(GoogleAtom entry) {
+		long hash = hash(FNV_OFFSET_BASIS, entry.getId());
+		GoogleProperty[] properties = entry.getProperties();
+		if (properties != null) {
+			properties = properties.clone();
+			Arrays.sort(properties, BY_NAME);
+			for (GoogleProperty property : properties) {
+				hash = hash(hash, property.getName());
+				hash = hash(hash, property.getValue());
+			}
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+				hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+			}
+		}
+		// separates the values, so that "ab","c" and "a","bc" differ
+		return (hash ^ 0xff) * FNV_PRIME;
+	}
+
+	/**
+	 * Returns the object to synchronize on while reading and replacing the
+	 * snapshot in a file, shared by all connector instances in this JVM.
+	 */
+	public static Object lockFor(File file) {
+		String key = file.getAbsolutePath();
+		Object lock = LOCKS.get(key);
+		if (lock == null) {
+			Object created = new Object();
+			lock = LOCKS.putIfAbsent(key, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Reads the snapshot in the file, or returns an empty snapshot when there
+	 * is no such file.
+	 */
+	public static UserSnapshot read(File file) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			return new UserSnapshot();
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a user snapshot: " + file);
+			}
+			long generation = in.readLong();
+			int size = in.readInt();
+			Map<String, Long> hashes = new HashMap<String, Long>(Math.max(16, size * 4 / 3 + 1));
+			byte[] buffer = new byte[256];
+			for (int i = 0; i < size; i++) {
+				int length = in.readUnsignedShort();
+				if (length > buffer.length) {
+					buffer = new byte[length];
+				}
+				in.readFully(buffer, 0, length);
+				hashes.put(new String(buffer, 0, length, UTF_8), in.readLong());
+			}
+			return new UserSnapshot(generation, hashes);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file next to the file and then
+	 * replaces the file with it.
+	 */
+	public void write(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(temporary);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(generation);
+				out.writeInt(hashes.size());
+				for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+					byte[] username = entry.getKey().getBytes(UTF_8);
+					out.writeShort(username.length);
+					out.write(username);
+					out.writeLong(entry.getValue());
+				}
+				out.flush();
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			        StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Compares the entries of the user feed with a {@link UserSnapshot} and hands
+ * the differences to a results handler. The token travels on the deltas only,
+ * so the snapshot to store next, see {@link #getSnapshot()}, reflects exactly
+ * the deltas handed out: it keeps the generation of the previous snapshot when
+ * there were none, and the hashes of the users not reached yet when the
+ * handler stopped early. Instances are not thread-safe.
+ */
+final class UserSnapshotSync implements GoogleAtomHandler {
+
+	private final UserSnapshot previous;
+	private final boolean incremental;
+	private final GoogleUserMapper mapper;
+	private final SyncResultsHandler handler;
+	private final SyncToken nextToken;
+
+	// the hashes as the handler has seen them, and the users not in the feed so far
+	private final Map<String, Long> hashes;
+	private final Set<String> unseen;
+
+	private int deltaCount;
+	private boolean stopped;
+
+	/**
+	 * @param token
+	 *            The token the caller holds, the changes are reported
+	 *            incrementally when it is the generation of the snapshot.
+	 */
+	UserSnapshotSync(UserSnapshot previous, SyncToken token, GoogleUserMapper mapper, SyncResultsHandler handler) {
+		this.previous = previous;
+		this.incremental = token != null && Long.valueOf(previous.getGeneration()).equals(token.getValue());
+		this.mapper = mapper;
+		this.handler = handler;
+		this.nextToken = new SyncToken(previous.getGeneration() + 1);
+		if (incremental) {
+			hashes = new HashMap<String, Long>(previous.getHashes());
+			unseen = new HashSet<String>(previous.getHashes().keySet());
+		} else {
+			hashes = new HashMap<String, Long>();
+			unseen = null;
+		}
+	}
+
+	/**
+	 * Indicates if only the changes since the snapshot are reported, rather
+	 * than every user.
+	 */
+	boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Reports the entry when it is new or changed.
+	 */
+	@Override
+	public boolean handle(GoogleAtom entry) {
+		String username = GoogleUserMapper.getUsername(entry);
+		if (username == null) {
+			return true;
+		}
+		long hash = UserSnapshot.hash(entry);
+		if (incremental) {
+			unseen.remove(username);
+			Long seen = previous.getHashes().get(username);
+			if (seen != null && seen.longValue() == hash) {
+				return true;
+			}
+		}
+		SyncDeltaBuilder delta = new SyncDeltaBuilder();
+		delta.setToken(nextToken);
+		delta.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+		delta.setObject(mapper.toConnectorObject(entry));
+		return deliver(delta, username, hash);
+	}
+
+	/**
+	 * Reports the users of the snapshot that were not in the feed, after the
+	 * whole feed was handled.
+	 * 
+	 * @return <code>false</code> when the handler stopped.
+	 */
+	boolean reportDeletions() {
+		if (!incremental) {
+			return !stopped;
+		}
+		for (String username : new HashSet<String>(unseen)) {
+			if (stopped) {
+				return false;
+			}
+			SyncDeltaBuilder delta = new SyncDeltaBuilder();
+			delta.setToken(nextToken);
+			delta.setDeltaType(SyncDeltaType.DELETE);
+			delta.setObjectClass(ObjectClass.ACCOUNT);
+			delta.setUid(new Uid(username));
+			deliver(delta, username, null);
+		}
+		return !stopped;
+	}
+
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Returns the number of deltas handed to the handler.
+	 */
+	int getDeltaCount() {
+		return deltaCount;
+	}
+
+	/**
+	 * Returns the snapshot matching the deltas handed out: of the next
+	 * generation when there were any, of the previous one otherwise.
+	 */
+	UserSnapshot getSnapshot() {
+		return new UserSnapshot(previous.getGeneration() + (deltaCount > 0 ? 1 : 0), hashes);
+	}
+
+	private boolean deliver(SyncDeltaBuilder delta, String username, Long hash) {
+		deltaCount++;
+		if (hash == null) {
+			hashes.remove(username);
+			unseen.remove(username);
+		} else {
+			hashes.put(username, hash);
+		}
+		stopped = !handler.handle(delta.build());
+		return !stopped;
+	}
+}
@@ -26,4 +26,7 @@ public interface GoogleConstants {
 	String NAME_MESSAGE_FIELD = "name";
 	String VALUE_MESSAGE_FIELD = "value";
 	String USERS_TO_MOVE_MESSAGE_FIELD = "usersToMove";
+	String USER_EMAIL_MESSAGE_FIELD = "userEmail";
+	String IS_SUSPENDED_MESSAGE_FIELD = "isSuspended";
+	String ORG_UNIT_PATH_MESSAGE_FIELD = "orgUnitPath";
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ParallelUserExporterTest {
+
+	@Test
+	public void keysSurviveTheRoundTrip() {
+		String[] keys = { "a", "liz", "bob.smith", "x_1-2", "0", "zzzzzzzzzzz", "'a" };
+		for (String key : keys) {
+			assertEquals(key, ParallelUserExporter.toKey(ParallelUserExporter.toNumber(key)));
+		}
+		assertEquals("", ParallelUserExporter.toKey(0));
+	}
+
+	@Test
+	public void keysAreOrderedLikeTheFeed() {
+		String[] keys = { "'", "-", ".", "0", "9", "_", "a", "a'", "aa", "b", "z", "zz" };
+		for (int i = 1; i < keys.length; i++) {
+			assertTrue(ParallelUserExporter.toNumber(keys[i - 1]) < ParallelUserExporter.toNumber(keys[i]));
+		}
+	}
+
+	@Test
+	public void emptyRangeHasNoSplitPoint() {
+		assertNull(ParallelUserExporter.splitPoint("a", "m", "m"));
+		assertNull(ParallelUserExporter.splitPoint("m", "m", "m"));
+		// a page beyond the end of the range
+		assertNull(ParallelUserExporter.splitPoint("n", "p", "m"));
+	}
+
+	@Test
+	public void openRangeSplitsBeyondTheLastKey() {
+		String at = ParallelUserExporter.splitPoint("a", "b", null);
+		assertNotNull(at);
+		assertTrue(at.compareTo("b") > 0);
+		// close to the end of the name space
+		assertBetween("zzzzzzzzzzz", null, ParallelUserExporter.splitPoint("zzzzzzzzzzy", "zzzzzzzzzzz", null));
+	}
+
+	@Test
+	public void closedRangeSplitsInsideIt() {
+		String at = ParallelUserExporter.splitPoint("a", "b", "m");
+		assertNotNull(at);
+		assertBetween("b", "m", at);
+		// a dense page keeps a few pages, a sparse one splits halfway
+		assertBetween("aaab", "m", ParallelUserExporter.splitPoint("aaaa", "aaab", "m"));
+		assertBetween("b", "m", ParallelUserExporter.splitPoint("'", "b", "m"));
+	}
+
+	@Test
+	public void adjacentKeysHaveNoSplitPoint() {
+		assertNull(ParallelUserExporter.splitPoint("a", "a", "a'"));
+		assertNull(ParallelUserExporter.splitPoint("liz", "liz", "liz'"));
+		// keys only differing beyond the compared digits
+		assertNull(ParallelUserExporter.splitPoint("abcdefghijk", "abcdefghijka", "abcdefghijkb"));
+	}
+
+	@Test
+	public void keysOutsideTheAlphabetStayInTheRange() {
+		String[][] ranges = { { "A", "B", null }, { "a b", "a~", "b" }, { "\u00e9", "\u00ff", null },
+		        { "!", "#", "a" }, { "a", "b", "\u00e9" } };
+		for (String[] range : ranges) {
+			assertBetween(range[1], range[2], ParallelUserExporter.splitPoint(range[0], range[1], range[2]));
+		}
+	}
+
+	/**
+	 * Asserts that the split point is absent or lies strictly inside the rest
+	 * of the range.
+	 */
+	private static void assertBetween(String last, String to, String at) {
+		if (at != null) {
+			assertTrue(at + " after " + last, at.compareTo(last) > 0);
+			assertTrue(at + " before " + to, to == null || at.compareTo(to) < 0);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2009-2010 Ernst Vorsteveld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.iwelcome.connector.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.iwelcome.connector.google.domain.GoogleAtom;
+import nl.iwelcome.connector.google.domain.GoogleProperty;
+
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.junit.Test;
+
+public class UserSnapshotSyncTest {
+
+	@Test
+	public void quietSyncsKeepTheGeneration() {
+		UserSnapshot snapshot = snapshot(3, user("liz", "Liz"), user("bob", "Bob"));
+
+		Recorder first = new Recorder(-1);
+		UserSnapshotSync sync = sync(snapshot, 3L, first, user("liz", "Liz"), user("bob", "Bob"));
+		assertTrue(sync.isIncremental());
+		assertEquals(0, first.deltas.size());
+		snapshot = sync.getSnapshot();
+		assertEquals(3, snapshot.getGeneration());
+
+		// the caller still holds token 3, the next sync must not replay everything
+		Recorder second = new Recorder(-1);
+		sync = sync(snapshot, 3L, second, user("liz", "Liz"), user("bob", "Bob"));
+		assertTrue(sync.isIncremental());
+		assertEquals(0, second.deltas.size());
+		assertEquals(3, sync.getSnapshot().getGeneration());
+	}
+
+	@Test
+	public void changesAdvanceTheGeneration() {
+		UserSnapshot snapshot = snapshot(3, user("liz", "Liz"), user("bob", "Bob"));
+
+		Recorder recorder = new Recorder(-1);
+		UserSnapshotSync sync = sync(snapshot, 3L, recorder, user("liz", "Elizabeth"), user("ann", "Ann"));
+		assertEquals(3, recorder.deltas.size());
+		assertEquals("liz", recorder.deltas.get(0).getUid().getUidValue());
+		assertEquals("ann", recorder.deltas.get(1).getUid().getUidValue());
+		assertEquals(SyncDeltaType.DELETE, recorder.deltas.get(2).getDeltaType());
+		assertEquals("bob", recorder.deltas.get(2).getUid().getUidValue());
+		for (SyncDelta delta : recorder.deltas) {
+			assertEquals(4L, delta.getToken().getValue());
+		}
+		UserSnapshot next = sync.getSnapshot();
+		assertEquals(4, next.getGeneration());
+		assertEquals(2, next.getHashes().size());
+		assertFalse(next.getHashes().containsKey("bob"));
+	}
+
+	@Test
+	public void earlyStopKeepsTheUsersNotReached() {
+		UserSnapshot snapshot = snapshot(3, user("liz", "Liz"), user("bob", "Bob"));
+
+		Recorder stopping = new Recorder(1);
+		UserSnapshotSync sync = sync(snapshot, 3L, stopping, user("liz", "Elizabeth"), user("bob", "Robert"));
+		assertTrue(sync.isStopped());
+		assertEquals(1, stopping.deltas.size());
+		snapshot = sync.getSnapshot();
+		assertEquals(4, snapshot.getGeneration());
+
+		// the caller holds token 4 and only has seen the change of liz
+		Recorder recorder = new Recorder(-1);
+		sync = sync(snapshot, 4L, recorder, user("liz", "Elizabeth"), user("bob", "Robert"));
+		assertTrue(sync.isIncremental());
+		assertEquals(1, recorder.deltas.size());
+		assertEquals("bob", recorder.deltas.get(0).getUid().getUidValue());
+	}
+
+	@Test
+	public void unknownTokenReportsAllUsers() {
+		UserSnapshot snapshot = snapshot(3, user("liz", "Liz"), user("bob", "Bob"));
+
+		Recorder recorder = new Recorder(-1);
+		UserSnapshotSync sync = sync(snapshot, 2L, recorder, user("liz", "Liz"));
+		assertFalse(sync.isIncremental());
+		assertEquals(1, recorder.deltas.size());
+		assertEquals(4, sync.getSnapshot().getGeneration());
+		assertEquals(1, sync.getSnapshot().getHashes().size());
+	}
+
+	private static UserSnapshotSync sync(UserSnapshot snapshot, Long token, SyncResultsHandler handler,
+	        GoogleAtom... feed) {
+		UserSnapshotSync sync = new UserSnapshotSync(snapshot, token == null ? null : new SyncToken(token),
+		        new GoogleUserMapper(null), handler);
+		for (GoogleAtom entry : feed) {
+			if (!sync.handle(entry)) {
+				return sync;
+			}
+		}
+		sync.reportDeletions();
+		return sync;
+	}
+
+	private static UserSnapshot snapshot(long generation, GoogleAtom... entries) {
+		Map<String, Long> hashes = new HashMap<String, Long>();
+		for (GoogleAtom entry : entries) {
+			hashes.put(GoogleUserMapper.getUsername(entry), UserSnapshot.hash(entry));
+		}
+		return new UserSnapshot(generation, hashes);
+	}
+
+	private static GoogleAtom user(String username, String givenName) {
+		GoogleAtom entry = new GoogleAtom();
+		entry.setId("https://apps-apis.google.com/a/feeds/user/2.0/example.com/" + username);
+		entry.setProperties(new GoogleProperty[] { new GoogleProperty("givenName", givenName) });
+		return entry;
+	}
+
+	/**
+	 * Keeps the deltas, stopping after the given number when not negative.
+	 */
+	private static class Recorder implements SyncResultsHandler {
+
+		private final int limit;
+		private final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+
+		Recorder(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean handle(SyncDelta delta) {
+			deltas.add(delta);
+			return limit < 0 || deltas.size() < limit;
+		}
+	}
+}